@@ -0,0 +1,65 @@
+package com.archdroid.terminal;
+
+/**
+ * Packed cell color encoding
+ * One int says whether a cell uses the default color, an entry of the 256
+ * color palette or a direct 24-bit RGB value: the top byte is the kind, the
+ * low 24 bits the index or RGB. Palette colors are resolved only when drawn,
+ * so changing the theme recolors text that is already on screen.
+ */
+final class CellColor {
+
+    static final int DEFAULT = 0;
+
+    private static final int KIND_INDEXED = 1 << 24;
+    private static final int KIND_RGB = 2 << 24;
+    private static final int KIND_MASK = 0xFF << 24;
+
+    /**
+     * The xterm 256 color table as ARGB. Entries 0-15 are placeholders for the
+     * theme's ANSI colors; 16-231 are the 6x6x6 cube and 232-255 the grays.
+     */
+    static final int[] XTERM_256 = new int[256];
+
+    static {
+        int[] levels = {0x00, 0x5F, 0x87, 0xAF, 0xD7, 0xFF};
+        for (int i = 0; i < 216; i++) {
+            XTERM_256[16 + i] = argb(levels[i / 36], levels[(i / 6) % 6], levels[i % 6]);
+        }
+        for (int i = 0; i < 24; i++) {
+            int gray = 8 + i * 10;
+            XTERM_256[232 + i] = argb(gray, gray, gray);
+        }
+    }
+
+    private CellColor() {
+    }
+
+    static int indexed(int index) {
+        return KIND_INDEXED | (Math.max(0, Math.min(255, index)));
+    }
+
+    static int rgb(int red, int green, int blue) {
+        return KIND_RGB | (clamp(red) << 16) | (clamp(green) << 8) | clamp(blue);
+    }
+
+    /** ARGB color of an encoded value given the 256 entry palette */
+    static int resolve(int color, int[] palette, int defaultColor) {
+        switch (color & KIND_MASK) {
+            case KIND_INDEXED:
+                return palette[color & 0xFF];
+            case KIND_RGB:
+                return 0xFF000000 | color;
+            default:
+                return defaultColor;
+        }
+    }
+
+    static int argb(int red, int green, int blue) {
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    private static int clamp(int component) {
+        return Math.max(0, Math.min(255, component));
+    }
+}
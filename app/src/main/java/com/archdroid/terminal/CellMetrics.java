@@ -0,0 +1,55 @@
+package com.archdroid.terminal;
+
+import android.graphics.Paint;
+
+/**
+ * Size of a terminal cell and where text sits in it, in pixels
+ * Measured once from the regular font whenever the typeface or text size
+ * changes, then shared by layout, hit-testing and drawing. Cells are a whole
+ * number of pixels high so rows and their cached strips line up exactly.
+ */
+final class CellMetrics {
+
+    final float cellWidth;
+    final float cellHeight;
+    /** Distance from the top of a cell to the text baseline */
+    final float baseline;
+    /** Height of the font above the baseline */
+    final float ascent;
+    /** Distance from the top of a cell to the top of the underline */
+    final float underlinePosition;
+    final float underlineThickness;
+
+    private CellMetrics(float cellWidth, float cellHeight, float baseline, float ascent,
+                        float underlinePosition, float underlineThickness) {
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.baseline = baseline;
+        this.ascent = ascent;
+        this.underlinePosition = underlinePosition;
+        this.underlineThickness = underlineThickness;
+    }
+
+    /** Measure the paint's current typeface and text size */
+    static CellMetrics measure(Paint paint, float lineSpacing) {
+        Paint.FontMetrics font = paint.getFontMetrics();
+        float ascent = -font.ascent;
+        float cellHeight = (float) Math.ceil(ascent + font.descent + lineSpacing);
+        // Extra line spacing is split above and below the text
+        float baseline = Math.round(lineSpacing / 2f + ascent);
+        float thickness = Math.max(1f, Math.round(paint.getTextSize() / 14f));
+        float underline = Math.min(baseline + thickness, cellHeight - thickness);
+        return new CellMetrics(paint.measureText("M"), Math.max(1f, cellHeight), baseline, ascent,
+            underline, thickness);
+    }
+
+    /** Columns that fit the given width in pixels, at least one */
+    int columnsIn(float width) {
+        return Math.max(1, (int) (width / cellWidth));
+    }
+
+    /** Rows that fit the given height in pixels, at least one */
+    int rowsIn(float height) {
+        return Math.max(1, (int) (height / cellHeight));
+    }
+}
@@ -0,0 +1,114 @@
+package com.archdroid.terminal;
+
+/**
+ * Column width of code points: 0 for combining marks and other zero-width
+ * characters, 2 for East Asian wide and full-width characters and emoji, 1
+ * for everything else
+ * The Basic Multilingual Plane is resolved through a table of 2-bit entries
+ * built once at class load; the rarer supplementary planes use a binary search
+ * over the wide ranges.
+ */
+final class CharWidth {
+
+    // Inclusive [first, last] pairs of wide ranges, sorted
+    private static final int[] WIDE = {
+        0x1100, 0x115F, 0x231A, 0x231B, 0x2329, 0x232A, 0x23E9, 0x23EC,
+        0x23F0, 0x23F0, 0x23F3, 0x23F3, 0x25FD, 0x25FE, 0x2614, 0x2615,
+        0x2648, 0x2653, 0x267F, 0x267F, 0x2693, 0x2693, 0x26A1, 0x26A1,
+        0x26AA, 0x26AB, 0x26BD, 0x26BE, 0x26C4, 0x26C5, 0x26CE, 0x26CE,
+        0x26D4, 0x26D4, 0x26EA, 0x26EA, 0x26F2, 0x26F3, 0x26F5, 0x26F5,
+        0x26FA, 0x26FA, 0x26FD, 0x26FD, 0x2705, 0x2705, 0x270A, 0x270B,
+        0x2728, 0x2728, 0x274C, 0x274C, 0x274E, 0x274E, 0x2753, 0x2755,
+        0x2757, 0x2757, 0x2795, 0x2797, 0x27B0, 0x27B0, 0x27BF, 0x27BF,
+        0x2B1B, 0x2B1C, 0x2B50, 0x2B50, 0x2B55, 0x2B55, 0x2E80, 0x303E,
+        0x3041, 0x33FF, 0x3400, 0x4DBF, 0x4E00, 0x9FFF, 0xA000, 0xA4CF,
+        0xA960, 0xA97F, 0xAC00, 0xD7A3, 0xF900, 0xFAFF, 0xFE10, 0xFE19,
+        0xFE30, 0xFE6F, 0xFF00, 0xFF60, 0xFFE0, 0xFFE6,
+        0x16FE0, 0x16FE4, 0x17000, 0x187F7, 0x18800, 0x18CD5, 0x1B000, 0x1B2FB,
+        0x1F004, 0x1F004, 0x1F0CF, 0x1F0CF, 0x1F18E, 0x1F18E, 0x1F191, 0x1F19A,
+        0x1F200, 0x1F202, 0x1F210, 0x1F23B, 0x1F240, 0x1F248, 0x1F250, 0x1F251,
+        0x1F260, 0x1F265, 0x1F300, 0x1F320, 0x1F32D, 0x1F335, 0x1F337, 0x1F37C,
+        0x1F37E, 0x1F393, 0x1F3A0, 0x1F3CA, 0x1F3CF, 0x1F3D3, 0x1F3E0, 0x1F3F0,
+        0x1F3F4, 0x1F3F4, 0x1F3F8, 0x1F43E, 0x1F440, 0x1F440, 0x1F442, 0x1F4FC,
+        0x1F4FF, 0x1F53D, 0x1F54B, 0x1F54E, 0x1F550, 0x1F567, 0x1F57A, 0x1F57A,
+        0x1F595, 0x1F596, 0x1F5A4, 0x1F5A4, 0x1F5FB, 0x1F64F, 0x1F680, 0x1F6C5,
+        0x1F6CC, 0x1F6CC, 0x1F6D0, 0x1F6D2, 0x1F6D5, 0x1F6D7, 0x1F6EB, 0x1F6EC,
+        0x1F6F4, 0x1F6FC, 0x1F7E0, 0x1F7EB, 0x1F90C, 0x1F93A, 0x1F93C, 0x1F945,
+        0x1F947, 0x1F9FF, 0x1FA70, 0x1FAFF, 0x20000, 0x2FFFD, 0x30000, 0x3FFFD,
+    };
+
+    // Two bits per BMP code point, 32 entries per long
+    private static final long[] BMP = new long[0x10000 / 32];
+
+    static {
+        // Entries below U+0300 are never read, see width()
+        for (int c = 0x300; c < 0x10000; c++) {
+            int width = isZeroWidth(c) ? 0 : isWideRange(c) ? 2 : 1;
+            BMP[c >> 5] |= (long) width << ((c & 31) << 1);
+        }
+    }
+
+    private CharWidth() {
+    }
+
+    static int width(int codePoint) {
+        if (codePoint < 0x300) {
+            // Latin text is by far the common case
+            return 1;
+        }
+        if (codePoint < 0x10000) {
+            return (int) (BMP[codePoint >> 5] >>> ((codePoint & 31) << 1)) & 3;
+        }
+        if (isZeroWidth(codePoint)) {
+            return 0;
+        }
+        return isWideRange(codePoint) ? 2 : 1;
+    }
+
+    /**
+     * Whether the code point is an emoji drawn with its own colors: the wide
+     * pictographs among the symbols and in the supplementary emoji blocks,
+     * and the regional indicators that form flags
+     */
+    static boolean isColorEmoji(int codePoint) {
+        if (codePoint >= 0x1F1E6 && codePoint <= 0x1F1FF) {
+            return true;
+        }
+        boolean symbols = codePoint >= 0x2300 && codePoint <= 0x2BFF;
+        boolean pictographs = codePoint >= 0x1F000 && codePoint <= 0x1FAFF;
+        return (symbols || pictographs) && width(codePoint) == 2;
+    }
+
+    private static boolean isZeroWidth(int codePoint) {
+        // Hangul medial vowels and final consonants join the preceding syllable
+        if (codePoint >= 0x1160 && codePoint <= 0x11FF) {
+            return true;
+        }
+        switch (Character.getType(codePoint)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+                return true;
+            case Character.FORMAT:
+                // The soft hyphen is shown as a hyphen
+                return codePoint != 0x00AD;
+            default:
+                return codePoint == 0x200B;
+        }
+    }
+
+    private static boolean isWideRange(int codePoint) {
+        int low = 0;
+        int high = WIDE.length / 2 - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (codePoint < WIDE[mid * 2]) {
+                high = mid - 1;
+            } else if (codePoint > WIDE[mid * 2 + 1]) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,97 @@
+package com.archdroid.terminal;
+
+import android.graphics.Typeface;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Monospace typefaces used by the terminal, one per bold/italic variant
+ * A user font may come with any subset of its variants; missing ones are
+ * synthesized from the closest available face with fake bold or a slant.
+ * Instances are immutable, so renderers can cache by identity.
+ */
+public final class FontConfig {
+
+    private static final String TAG = "FontConfig";
+    private static final float ITALIC_SKEW = -0.25f;
+
+    // Android synthesizes the styles the system font lacks by itself
+    private static final FontConfig MONOSPACE = new FontConfig(new Typeface[]{
+        Typeface.MONOSPACE,
+        Typeface.create(Typeface.MONOSPACE, Typeface.BOLD),
+        Typeface.create(Typeface.MONOSPACE, Typeface.ITALIC),
+        Typeface.create(Typeface.MONOSPACE, Typeface.BOLD_ITALIC)
+    }, new boolean[4], new boolean[4]);
+
+    // All indexed by (bold ? 1 : 0) | (italic ? 2 : 0)
+    private final Typeface[] faces;
+    private final boolean[] fakeBold;
+    private final boolean[] fakeItalic;
+
+    private FontConfig(Typeface[] faces, boolean[] fakeBold, boolean[] fakeItalic) {
+        this.faces = faces;
+        this.fakeBold = fakeBold;
+        this.fakeItalic = fakeItalic;
+    }
+
+    /** The system monospace font */
+    public static FontConfig monospace() {
+        return MONOSPACE;
+    }
+
+    /**
+     * Load a user font. Any variant file may be null or unreadable; the
+     * regular face falls back to the system monospace font.
+     */
+    public static FontConfig fromFiles(File regular, File bold, File italic, File boldItalic) {
+        Typeface[] faces = {load(regular), load(bold), load(italic), load(boldItalic)};
+        if (faces[0] == null) {
+            faces[0] = Typeface.MONOSPACE;
+        }
+        boolean[] fakeBold = new boolean[4];
+        boolean[] fakeItalic = new boolean[4];
+        // Fill each missing variant from the face sharing most of its style
+        for (int variant = 1; variant < 4; variant++) {
+            if (faces[variant] != null) {
+                continue;
+            }
+            int closest = variant == 3 ? (faces[2] != null ? 2 : faces[1] != null ? 1 : 0) : 0;
+            faces[variant] = faces[closest];
+            fakeBold[variant] = (variant & 1) != 0 && (closest & 1) == 0;
+            fakeItalic[variant] = (variant & 2) != 0 && (closest & 2) == 0;
+        }
+        return new FontConfig(faces, fakeBold, fakeItalic);
+    }
+
+    /** Regular face, which all cell metrics are measured from */
+    public Typeface getRegular() {
+        return faces[0];
+    }
+
+    public Typeface getTypeface(boolean bold, boolean italic) {
+        return faces[(bold ? 1 : 0) | (italic ? 2 : 0)];
+    }
+
+    /** Bold has to be synthesized because the font has no matching bold face */
+    boolean needsFakeBold(boolean bold, boolean italic) {
+        return fakeBold[(bold ? 1 : 0) | (italic ? 2 : 0)];
+    }
+
+    /** Slant to apply when the font has no matching italic face */
+    float italicSkew(boolean bold, boolean italic) {
+        return fakeItalic[(bold ? 1 : 0) | (italic ? 2 : 0)] ? ITALIC_SKEW : 0f;
+    }
+
+    private static Typeface load(File file) {
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            return Typeface.createFromFile(file);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot load font " + file, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.archdroid.terminal;
+
+import android.view.Choreographer;
+import android.view.View;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces terminal output into at most one redraw per vsync
+ * The reader thread only marks the view dirty; the first mark of a frame
+ * posts a single {@link Choreographer} callback, which invalidates the view
+ * right before the frame is drawn. However fast output arrives, the UI thread
+ * sees one message and one draw per frame. An optional cap lowers the frame
+ * rate further, except for a small echo after a quiet period, which is drawn
+ * on the next vsync so typing latency does not change.
+ */
+final class FrameScheduler implements Choreographer.FrameCallback {
+
+    // Output up to this size after a quiet period is treated as an echo
+    private static final int INTERACTIVE_BYTES = 256;
+    private static final long QUIET_NANOS = 100_000_000L;
+
+    private final View view;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final Runnable postFrame = this::postFrame;
+    private Choreographer choreographer;
+
+    private volatile long minFrameIntervalNanos = 0;
+    private volatile boolean interactive = false;
+    private long lastOutputNanos = 0;
+    private long lastFrameNanos = 0;
+
+    FrameScheduler(View view) {
+        this.view = view;
+    }
+
+    /** Limit redraws for output to the given rate; 0 follows the display */
+    void setMaxFramesPerSecond(int fps) {
+        minFrameIntervalNanos = fps > 0 ? 1_000_000_000L / fps : 0;
+    }
+
+    /** Output of the given size was written to the emulator; any thread */
+    void onOutput(int length) {
+        long now = System.nanoTime();
+        if (length <= INTERACTIVE_BYTES && now - lastOutputNanos > QUIET_NANOS) {
+            interactive = true;
+        }
+        lastOutputNanos = now;
+        if (dirty.compareAndSet(false, true)) {
+            view.post(postFrame);
+        }
+    }
+
+    /** Drop a pending frame; called on the UI thread when the view goes away */
+    void cancel() {
+        view.removeCallbacks(postFrame);
+        if (choreographer != null) {
+            choreographer.removeFrameCallback(this);
+        }
+        dirty.set(false);
+    }
+
+    private void postFrame() {
+        if (choreographer == null) {
+            // Bound to the UI thread's looper, so only created here
+            choreographer = Choreographer.getInstance();
+        }
+        choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!interactive && frameTimeNanos - lastFrameNanos < minFrameIntervalNanos) {
+            // Over the cap: stay dirty and try again on the next vsync
+            choreographer.postFrameCallback(this);
+            return;
+        }
+        interactive = false;
+        lastFrameNanos = frameTimeNanos;
+        // Cleared before drawing, so output arriving during the draw schedules the next frame
+        dirty.set(false);
+        view.invalidate();
+    }
+}
@@ -0,0 +1,246 @@
+package com.archdroid.terminal;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache of pre-rasterized glyphs for the terminal renderer
+ * Glyphs are drawn once per (code point, bold, italic) at the current text
+ * size into fixed-size slots of a few ALPHA_8 atlas pages, and afterwards
+ * every cell is a single bitmap blit: an alpha-only bitmap is drawn in the
+ * paint's color, so one cached glyph serves every foreground color. Color
+ * emoji would lose their colors in an alpha-only bitmap, so they are left to
+ * the text path. When all slots are taken the least recently drawn glyph is
+ * replaced. Changing the text size or fonts drops the whole cache.
+ */
+final class GlyphAtlas {
+
+    private static final int PAGE_SIZE = 1024;
+    private static final int MAX_PAGES = 4;
+    // Room around the glyph for italic and overhanging outlines
+    private static final int MARGIN = 2;
+
+    private static final int BOLD = 1;
+    private static final int ITALIC = 2;
+
+    private final Paint glyphPaint = new Paint();
+    private final Paint clearPaint = new Paint();
+    private final Paint blitPaint = new Paint();
+    private final Rect source = new Rect();
+    private final Rect destination = new Rect();
+    private final char[] glyphChars = new char[2];
+
+    private final List<Bitmap> pages = new ArrayList<>();
+    private final List<Canvas> pageCanvases = new ArrayList<>();
+
+    private FontConfig fonts;
+    private float textSize;
+    private CellMetrics metrics;
+    private int cellWidth;
+    private int slotWidth;
+    private int slotHeight;
+    private int baseline;
+    private int slotsPerRow;
+    private int slotsPerPage;
+
+    // Per slot: the cached glyph key and the frame it was last drawn in
+    private long[] slotKeys = new long[0];
+    private long[] slotLastUse = new long[0];
+    private int slotCount = 0;
+    private long frame = 0;
+
+    // Open-addressed index from glyph key to slot + 1, 0 marks an empty entry
+    private long[] tableKeys = new long[0];
+    private int[] tableSlots = new int[0];
+
+    GlyphAtlas() {
+        glyphPaint.setAntiAlias(true);
+        glyphPaint.setColor(0xFFFFFFFF);
+        clearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        blitPaint.setFilterBitmap(false);
+    }
+
+    /**
+     * Match the renderer's fonts, text size and cell size. The cache is
+     * dropped whenever one of them changed.
+     */
+    void configure(FontConfig fontConfig, float size, CellMetrics cellMetrics) {
+        if (fontConfig == fonts && size == textSize && cellMetrics == metrics) {
+            return;
+        }
+        release();
+        fonts = fontConfig;
+        textSize = size;
+        metrics = cellMetrics;
+        glyphPaint.setTextSize(size);
+
+        cellWidth = (int) Math.ceil(cellMetrics.cellWidth);
+        // Two cells so that double-width glyphs fit the same slots
+        slotWidth = 2 * cellWidth + 2 * MARGIN;
+        slotHeight = (int) Math.ceil(cellMetrics.cellHeight) + 2 * MARGIN;
+        baseline = Math.round(cellMetrics.baseline) + MARGIN;
+        int pageSize = Math.max(PAGE_SIZE, Math.max(slotWidth, slotHeight));
+        slotsPerRow = pageSize / slotWidth;
+        slotsPerPage = slotsPerRow * (pageSize / slotHeight);
+
+        int capacity = slotsPerPage * MAX_PAGES;
+        slotKeys = new long[capacity];
+        slotLastUse = new long[capacity];
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        tableKeys = new long[tableSize];
+        tableSlots = new int[tableSize];
+    }
+
+    /** Drop every cached glyph, for example after the text size changed */
+    void invalidate() {
+        release();
+        metrics = null;
+    }
+
+    /** Start a new frame; glyphs drawn in it are the last to be evicted */
+    void beginFrame() {
+        frame++;
+    }
+
+    /**
+     * Draw a glyph with its cell origin at (x, top) in the given color.
+     * Returns false if the glyph cannot be cached and must be drawn as text.
+     */
+    boolean draw(Canvas canvas, int codePoint, boolean bold, boolean italic, float x, float top,
+                 int color) {
+        if (slotKeys.length == 0 || codePoint < 0 || CharWidth.isColorEmoji(codePoint)) {
+            return false;
+        }
+        long key = ((long) codePoint << 2) | (bold ? BOLD : 0) | (italic ? ITALIC : 0);
+        int slot = find(key);
+        if (slot < 0) {
+            slot = rasterize(key, codePoint, bold, italic);
+        }
+        slotLastUse[slot] = frame;
+
+        int page = slot / slotsPerPage;
+        int index = slot % slotsPerPage;
+        int left = (index % slotsPerRow) * slotWidth;
+        int slotTop = (index / slotsPerRow) * slotHeight;
+        source.set(left, slotTop, left + slotWidth, slotTop + slotHeight);
+        int destinationLeft = Math.round(x) - MARGIN;
+        int destinationTop = Math.round(top) - MARGIN;
+        destination.set(destinationLeft, destinationTop,
+            destinationLeft + slotWidth, destinationTop + slotHeight);
+        blitPaint.setColor(color);
+        canvas.drawBitmap(pages.get(page), source, destination, blitPaint);
+        return true;
+    }
+
+    /** Recycle the atlas bitmaps */
+    void release() {
+        for (Bitmap page : pages) {
+            page.recycle();
+        }
+        pages.clear();
+        pageCanvases.clear();
+        Arrays.fill(tableSlots, 0);
+        slotCount = 0;
+    }
+
+    private int rasterize(long key, int codePoint, boolean bold, boolean italic) {
+        int slot;
+        if (slotCount < slotKeys.length) {
+            slot = slotCount++;
+        } else {
+            slot = leastRecentlyUsed();
+            remove(slotKeys[slot]);
+        }
+        slotKeys[slot] = key;
+        insert(key, slot);
+
+        int page = slot / slotsPerPage;
+        while (pages.size() <= page) {
+            Bitmap bitmap = Bitmap.createBitmap(slotsPerRow * slotWidth,
+                (slotsPerPage / slotsPerRow) * slotHeight, Bitmap.Config.ALPHA_8);
+            pages.add(bitmap);
+            pageCanvases.add(new Canvas(bitmap));
+        }
+        int index = slot % slotsPerPage;
+        int left = (index % slotsPerRow) * slotWidth;
+        int top = (index / slotsPerRow) * slotHeight;
+        Canvas canvas = pageCanvases.get(page);
+        canvas.drawRect(left, top, left + slotWidth, top + slotHeight, clearPaint);
+
+        glyphPaint.setTypeface(fonts.getTypeface(bold, italic));
+        glyphPaint.setFakeBoldText(fonts.needsFakeBold(bold, italic));
+        glyphPaint.setTextSkewX(fonts.italicSkew(bold, italic));
+        int length = Character.toChars(codePoint, glyphChars, 0);
+        canvas.drawText(glyphChars, 0, length, left + MARGIN, top + baseline, glyphPaint);
+        return slot;
+    }
+
+    private int leastRecentlyUsed() {
+        int oldest = 0;
+        for (int slot = 1; slot < slotCount; slot++) {
+            if (slotLastUse[slot] < slotLastUse[oldest]) {
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private int find(long key) {
+        int mask = tableKeys.length - 1;
+        int index = hash(key) & mask;
+        while (tableSlots[index] != 0) {
+            if (tableKeys[index] == key) {
+                return tableSlots[index] - 1;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long key, int slot) {
+        int mask = tableKeys.length - 1;
+        int index = hash(key) & mask;
+        while (tableSlots[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        tableKeys[index] = key;
+        tableSlots[index] = slot + 1;
+    }
+
+    private void remove(long key) {
+        int mask = tableKeys.length - 1;
+        int index = hash(key) & mask;
+        while (tableSlots[index] != 0 && tableKeys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        if (tableSlots[index] == 0) {
+            return;
+        }
+        // Shift later entries of the probe chain back so lookups stay correct
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (tableSlots[next] != 0) {
+            int home = hash(tableKeys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                tableKeys[gap] = tableKeys[next];
+                tableSlots[gap] = tableSlots[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        tableSlots[gap] = 0;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
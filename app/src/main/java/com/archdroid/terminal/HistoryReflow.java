@@ -0,0 +1,177 @@
+package com.archdroid.terminal;
+
+import java.util.Arrays;
+
+/**
+ * Lazily rewrapped view of the history older than a resize
+ * Lines before the boundary were wrapped at an older width. Rather than
+ * rewriting the whole archive when the width changes, this view walks back
+ * from the boundary one logical line at a time, only as far as the viewport
+ * has been scrolled, and builds rows of the new width on demand. Rows are
+ * addressed by their distance above the boundary, so walking further back
+ * never moves rows that were already handed out.
+ */
+class HistoryReflow {
+
+    interface LineSource {
+        /** Stored line with the given absolute number, or null once evicted */
+        TerminalEmulator.TextLine get(long lineNumber);
+    }
+
+    private static final int ROW_CACHE_SIZE = 64;
+
+    private final int width;
+    private final long boundary;
+    private final StyleTable styles;
+    private final LineSource source;
+
+    // Logical lines walked so far, newest first: their first stored line and
+    // the number of rows up to and including them
+    private long[] starts = new long[64];
+    private int[] rowEnds = new int[64];
+    private int count = 0;
+    // Stored lines [walkedTo, boundary) have been walked
+    private long walkedTo;
+
+    private final TerminalEmulator.TextLine[] rowCache =
+        new TerminalEmulator.TextLine[ROW_CACHE_SIZE];
+    private final long[] rowCacheKeys = new long[ROW_CACHE_SIZE];
+    private TerminalEmulator.TextLine[] segments = new TerminalEmulator.TextLine[16];
+
+    HistoryReflow(int width, long boundary, StyleTable styles, LineSource source) {
+        this.width = width;
+        this.boundary = boundary;
+        this.styles = styles;
+        this.source = source;
+        walkedTo = boundary;
+        Arrays.fill(rowCacheKeys, -1);
+    }
+
+    /** First stored line number that is already wrapped at the current width */
+    long boundary() {
+        return boundary;
+    }
+
+    /**
+     * Rows the rewrapped part adds compared to counting stored lines, given
+     * that history now starts at {@code firstLineNumber}
+     */
+    int extraRows(long firstLineNumber) {
+        trim(firstLineNumber);
+        return rows() - (int) (boundary - walkedTo);
+    }
+
+    /** Drop the cached rows, whose style IDs are about to be reclaimed */
+    void dropCachedRows() {
+        Arrays.fill(rowCache, null);
+        Arrays.fill(rowCacheKeys, -1);
+    }
+
+    /**
+     * Row {@code distance} rows above the boundary (0 is the row right above
+     * it), or null if history does not reach that far
+     */
+    TerminalEmulator.TextLine row(long distance, long firstLineNumber) {
+        int cacheSlot = (int) (distance % ROW_CACHE_SIZE);
+        if (rowCacheKeys[cacheSlot] == distance) {
+            return rowCache[cacheSlot];
+        }
+
+        trim(firstLineNumber);
+        while (rows() <= distance && walkedTo > firstLineNumber) {
+            if (!walkLogicalLine(firstLineNumber)) {
+                break;
+            }
+        }
+        if (rows() <= distance) {
+            return null;
+        }
+
+        // First logical line whose row range reaches past the distance
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rowEnds[mid] > distance) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        int rowStart = low == 0 ? 0 : rowEnds[low - 1];
+        int rowsInLine = rowEnds[low] - rowStart;
+        int rowInLine = rowsInLine - 1 - (int) (distance - rowStart);
+        long end = low == 0 ? boundary : starts[low - 1];
+
+        int segmentCount = loadSegments(starts[low], end);
+        if (segmentCount < 0) {
+            return null;
+        }
+        int length = LineReflow.logicalLength(segments, 0, segmentCount);
+        int offset = LineReflow.rowStart(segments, 0, segmentCount, width, rowInLine);
+        int rowEnd = LineReflow.rowEnd(segments, 0, segmentCount, length, offset, width);
+        TerminalEmulator.TextLine row = new TerminalEmulator.TextLine(styles, width);
+        LineReflow.copyRow(segments, 0, segmentCount, offset, rowEnd - offset, row);
+        row.setWrapped(rowInLine < rowsInLine - 1);
+
+        rowCacheKeys[cacheSlot] = distance;
+        rowCache[cacheSlot] = row;
+        return row;
+    }
+
+    private int rows() {
+        return count == 0 ? 0 : rowEnds[count - 1];
+    }
+
+    /** Forget logical lines whose start has been evicted from history */
+    private void trim(long firstLineNumber) {
+        while (count > 0 && starts[count - 1] < firstLineNumber) {
+            count--;
+        }
+        walkedTo = count > 0 ? starts[count - 1] : boundary;
+    }
+
+    private boolean walkLogicalLine(long firstLineNumber) {
+        long end = walkedTo;
+        long start = end - 1;
+        while (start > firstLineNumber) {
+            TerminalEmulator.TextLine previous = source.get(start - 1);
+            if (previous == null || !previous.isWrapped()) {
+                break;
+            }
+            start--;
+        }
+
+        int segmentCount = loadSegments(start, end);
+        if (segmentCount < 0) {
+            return false;
+        }
+        int rows = LineReflow.rowCount(segments, 0, segmentCount, width);
+
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            rowEnds = Arrays.copyOf(rowEnds, count * 2);
+        }
+        starts[count] = start;
+        rowEnds[count] = rows() + rows;
+        count++;
+        walkedTo = start;
+        return true;
+    }
+
+    /** Load stored lines [start, end) into segments, or return -1 if one is gone */
+    private int loadSegments(long start, long end) {
+        int segmentCount = (int) (end - start);
+        if (segments.length < segmentCount) {
+            segments = new TerminalEmulator.TextLine[Math.max(segmentCount, segments.length * 2)];
+        }
+        for (int i = 0; i < segmentCount; i++) {
+            TerminalEmulator.TextLine line = source.get(start + i);
+            if (line == null) {
+                return -1;
+            }
+            segments[i] = line;
+        }
+        return segmentCount;
+    }
+}
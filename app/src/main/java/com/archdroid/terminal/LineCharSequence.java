@@ -0,0 +1,117 @@
+package com.archdroid.terminal;
+
+import java.util.Arrays;
+
+/**
+ * Reusable {@link CharSequence} view of a logical line for regular expressions
+ * The cells of the line's rows are decoded once into a char buffer that is
+ * kept between lines, together with the row and cell every char came from,
+ * so matching allocates nothing per line and match offsets map straight back
+ * to cells. Wide-character tails contribute no chars; trailing blanks of the
+ * last row are left out.
+ */
+final class LineCharSequence implements CharSequence {
+
+    private char[] chars = new char[256];
+    // Per char: the row it came from and the cells it covers [column, endColumn)
+    private int[] segmentOf = new int[256];
+    private int[] columnOf = new int[256];
+    private int[] endColumnOf = new int[256];
+    private int length = 0;
+
+    // Per row of the logical line: its absolute number and width in cells
+    private long[] lineNumbers = new long[8];
+    private int[] segmentWidths = new int[8];
+    private int segmentCount = 0;
+
+    private final StringBuilder cluster = new StringBuilder();
+
+    void clear() {
+        length = 0;
+        segmentCount = 0;
+    }
+
+    /** Append the cells of the next row of the logical line */
+    void append(long lineNumber, TerminalEmulator.TextLine line) {
+        if (segmentCount == lineNumbers.length) {
+            lineNumbers = Arrays.copyOf(lineNumbers, segmentCount * 2);
+            segmentWidths = Arrays.copyOf(segmentWidths, segmentCount * 2);
+        }
+        int segment = segmentCount++;
+        int size = line.isWrapped() ? line.size() : line.contentLength();
+        lineNumbers[segment] = lineNumber;
+        segmentWidths[segment] = size;
+
+        for (int i = 0; i < size; i++) {
+            int codePoint = line.getCodePoint(i);
+            if (codePoint == TerminalEmulator.TextLine.WIDE_TAIL) {
+                continue;
+            }
+            int endColumn = line.isWide(i) ? i + 2 : i + 1;
+            if (line.isCluster(i)) {
+                cluster.setLength(0);
+                line.appendCell(cluster, i);
+                for (int c = 0; c < cluster.length(); c++) {
+                    put(cluster.charAt(c), segment, i, endColumn);
+                }
+            } else if (Character.isBmpCodePoint(codePoint)) {
+                put((char) codePoint, segment, i, endColumn);
+            } else {
+                put(Character.highSurrogate(codePoint), segment, i, endColumn);
+                put(Character.lowSurrogate(codePoint), segment, i, endColumn);
+            }
+        }
+    }
+
+    private void put(char c, int segment, int column, int endColumn) {
+        if (length == chars.length) {
+            int capacity = length * 2;
+            chars = Arrays.copyOf(chars, capacity);
+            segmentOf = Arrays.copyOf(segmentOf, capacity);
+            columnOf = Arrays.copyOf(columnOf, capacity);
+            endColumnOf = Arrays.copyOf(endColumnOf, capacity);
+        }
+        chars[length] = c;
+        segmentOf[length] = segment;
+        columnOf[length] = column;
+        endColumnOf[length] = endColumn;
+        length++;
+    }
+
+    /** Search hit covering the non-empty char range [start, end) */
+    SearchMatch toMatch(int start, int end) {
+        int startSegment = segmentOf[start];
+        int endSegment = segmentOf[end - 1];
+        int startColumn = columnOf[start];
+        int endColumn = endColumnOf[end - 1];
+        int cells = endColumn - startColumn;
+        for (int segment = startSegment; segment < endSegment; segment++) {
+            cells += segmentWidths[segment];
+        }
+        return new SearchMatch(lineNumbers[startSegment], startColumn, cells,
+            lineNumbers[endSegment], endColumn);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
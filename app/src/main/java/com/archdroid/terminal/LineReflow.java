@@ -0,0 +1,136 @@
+package com.archdroid.terminal;
+
+import java.util.List;
+
+/**
+ * Rewraps soft-wrapped text to a new width
+ * A logical line is a run of lines where every line but the last has its
+ * wrapped flag set. Rewrapping joins the run, drops trailing blanks of its last
+ * line and splits it again into rows of the new width. A row ends one cell
+ * early rather than split a double-width character.
+ */
+final class LineReflow {
+
+    private LineReflow() {
+    }
+
+    /**
+     * Rewrap {@code lines[0, count)} to {@code width}, appending the new rows to
+     * {@code out}. Returns the cursor position as (row in out << 32 | column),
+     * or -1 if {@code cursorLine} is outside the range.
+     */
+    static long rewrap(TerminalEmulator.TextLine[] lines, int count, int width,
+                       StyleTable styles, List<TerminalEmulator.TextLine> out,
+                       int cursorLine, int cursorCol) {
+        long cursor = -1;
+        int start = 0;
+        while (start < count) {
+            int end = start + 1;
+            while (end < count && lines[end - 1].isWrapped()) {
+                end++;
+            }
+
+            int length = logicalLength(lines, start, end);
+            int cursorOffset = -1;
+            if (cursorLine >= start && cursorLine < end) {
+                cursorOffset = cursorCol;
+                for (int i = start; i < cursorLine; i++) {
+                    cursorOffset += lines[i].size();
+                }
+            }
+
+            int offset = 0;
+            boolean more;
+            do {
+                int rowEnd = rowEnd(lines, start, end, length, offset, width);
+                if (cursorOffset >= offset && cursorOffset < rowEnd) {
+                    cursor = ((long) out.size() << 32) | (cursorOffset - offset);
+                }
+                TerminalEmulator.TextLine row = new TerminalEmulator.TextLine(styles, width);
+                copyRow(lines, start, end, offset, rowEnd - offset, row);
+                offset = rowEnd;
+                more = offset < length || offset <= cursorOffset;
+                row.setWrapped(more);
+                out.add(row);
+            } while (more);
+            start = end;
+        }
+        return cursor;
+    }
+
+    /** Cells in the logical line made of {@code lines[start, end)} */
+    static int logicalLength(TerminalEmulator.TextLine[] lines, int start, int end) {
+        int length = lines[end - 1].contentLength();
+        for (int i = start; i < end - 1; i++) {
+            length += lines[i].size();
+        }
+        return length;
+    }
+
+    /** Rows the logical line {@code lines[start, end)} takes at {@code width} */
+    static int rowCount(TerminalEmulator.TextLine[] lines, int start, int end, int width) {
+        int length = logicalLength(lines, start, end);
+        int rows = 0;
+        int offset = 0;
+        do {
+            offset = rowEnd(lines, start, end, length, offset, width);
+            rows++;
+        } while (offset < length);
+        return rows;
+    }
+
+    /** Cell offset within the logical line where the given row starts */
+    static int rowStart(TerminalEmulator.TextLine[] lines, int start, int end, int width,
+                        int row) {
+        int length = logicalLength(lines, start, end);
+        int offset = 0;
+        for (int i = 0; i < row; i++) {
+            offset = rowEnd(lines, start, end, length, offset, width);
+        }
+        return offset;
+    }
+
+    /** Offset one past the last cell of the row starting at {@code offset} */
+    static int rowEnd(TerminalEmulator.TextLine[] lines, int start, int end, int length,
+                      int offset, int width) {
+        int rowEnd = offset + width;
+        if (width > 1 && rowEnd < length
+                && cellAt(lines, start, end, rowEnd) == TerminalEmulator.TextLine.WIDE_TAIL) {
+            // Move the whole double-width character to the next row
+            rowEnd--;
+        }
+        return rowEnd;
+    }
+
+    private static int cellAt(TerminalEmulator.TextLine[] lines, int start, int end, int offset) {
+        for (int i = start; i < end; i++) {
+            int size = lines[i].size();
+            if (offset < size) {
+                return lines[i].getCodePoint(offset);
+            }
+            offset -= size;
+        }
+        return ' ';
+    }
+
+    /**
+     * Copy {@code count} cells of the logical line {@code lines[start, end)},
+     * beginning at cell {@code offset}, into {@code row}
+     */
+    static void copyRow(TerminalEmulator.TextLine[] lines, int start, int end, int offset,
+                        int count, TerminalEmulator.TextLine row) {
+        int column = 0;
+        for (int i = start; i < end && column < count; i++) {
+            TerminalEmulator.TextLine line = lines[i];
+            int length = i == end - 1 ? line.contentLength() : line.size();
+            if (offset >= length) {
+                offset -= length;
+                continue;
+            }
+            int take = Math.min(length - offset, count - column);
+            row.copyCells(line, offset, column, take);
+            column += take;
+            offset = 0;
+        }
+    }
+}
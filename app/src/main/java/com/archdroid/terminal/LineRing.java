@@ -0,0 +1,185 @@
+package com.archdroid.terminal;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed-capacity circular store of terminal lines
+ * Holds the scrollback history followed by the visible screen rows. Every line
+ * gets a monotonically increasing absolute line number, so callers can address
+ * history without lines ever being moved. Appending and evicting are O(1).
+ */
+class LineRing {
+
+    interface EvictionListener {
+        /** Called with the oldest line just before its storage is reused or dropped */
+        void onLineEvicted(long lineNumber, TerminalEmulator.TextLine line);
+    }
+
+    private final StyleTable styles;
+    private final EvictionListener evictionListener;
+    private TerminalEmulator.TextLine[] lines;
+    private int head = 0;
+    private int count = 0;
+    private long firstLineNumber = 0;
+
+    LineRing(int capacity, StyleTable styles) {
+        this(capacity, styles, null);
+    }
+
+    LineRing(int capacity, StyleTable styles, EvictionListener evictionListener) {
+        this.styles = styles;
+        this.evictionListener = evictionListener;
+        lines = new TerminalEmulator.TextLine[Math.max(1, capacity)];
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** Absolute number of the oldest line still held */
+    long firstLineNumber() {
+        return firstLineNumber;
+    }
+
+    /** Absolute number one past the newest line */
+    long endLineNumber() {
+        return firstLineNumber + count;
+    }
+
+    boolean contains(long lineNumber) {
+        return lineNumber >= firstLineNumber && lineNumber < firstLineNumber + count;
+    }
+
+    TerminalEmulator.TextLine get(long lineNumber) {
+        if (!contains(lineNumber)) {
+            return null;
+        }
+        return lines[slot((int) (lineNumber - firstLineNumber))];
+    }
+
+    /** Mark the style IDs of every line in the ring as live */
+    void markStyles(StyleTable table) {
+        for (int i = 0; i < count; i++) {
+            lines[slot(i)].markStyles(table);
+        }
+    }
+
+    /**
+     * Append a blank line of the given width. When the ring is full the oldest
+     * line is evicted and its storage reused for the new line.
+     */
+    TerminalEmulator.TextLine append(int width) {
+        TerminalEmulator.TextLine line;
+        if (count == lines.length) {
+            line = lines[head];
+            if (evictionListener != null) {
+                evictionListener.onLineEvicted(firstLineNumber, line);
+            }
+            head = slot(1);
+            firstLineNumber++;
+        } else {
+            int index = slot(count);
+            line = lines[index];
+            if (line == null) {
+                line = new TerminalEmulator.TextLine(styles, width);
+                lines[index] = line;
+            }
+            count++;
+        }
+        line.reset(width);
+        return line;
+    }
+
+    /**
+     * Rotate the lines in [fromLine, toLine) up by {@code distance} positions:
+     * the line at fromLine + distance ends up at fromLine and the first
+     * {@code distance} lines wrap around to the end of the range. A negative
+     * distance rotates down. Only references move, never cell contents.
+     */
+    void rotate(long fromLine, long toLine, int distance) {
+        int from = (int) (fromLine - firstLineNumber);
+        int to = (int) (toLine - firstLineNumber);
+        int length = to - from;
+        if (length <= 1 || from < 0 || to > count) {
+            return;
+        }
+        int shift = Math.floorMod(distance, length);
+        if (shift == 0) {
+            return;
+        }
+        reverse(from, from + shift);
+        reverse(from + shift, to);
+        reverse(from, to);
+    }
+
+    private void reverse(int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            int a = slot(i);
+            int b = slot(j);
+            TerminalEmulator.TextLine tmp = lines[a];
+            lines[a] = lines[b];
+            lines[b] = tmp;
+        }
+    }
+
+    /** Drop the newest line. Its storage stays in place for reuse by {@link #append}. */
+    void removeLast() {
+        if (count > 0) {
+            count--;
+        }
+    }
+
+    /**
+     * Replace every line, keeping the first line number. When there are more
+     * lines than fit, the oldest are evicted as if they had been appended one
+     * by one.
+     */
+    void replaceAll(List<TerminalEmulator.TextLine> replacement) {
+        int overflow = Math.max(0, replacement.size() - lines.length);
+        if (evictionListener != null) {
+            for (int i = 0; i < overflow; i++) {
+                evictionListener.onLineEvicted(firstLineNumber + i, replacement.get(i));
+            }
+        }
+        Arrays.fill(lines, null);
+        count = replacement.size() - overflow;
+        for (int i = 0; i < count; i++) {
+            lines[i] = replacement.get(overflow + i);
+        }
+        head = 0;
+        firstLineNumber += overflow;
+    }
+
+    /**
+     * Change the capacity, keeping the newest lines. Only called on resize or
+     * configuration changes, so the O(n) copy is acceptable here.
+     */
+    void setCapacity(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity == lines.length) {
+            return;
+        }
+        int keep = Math.min(count, capacity);
+        int dropped = count - keep;
+        if (evictionListener != null) {
+            for (int i = 0; i < dropped; i++) {
+                evictionListener.onLineEvicted(firstLineNumber + i, lines[slot(i)]);
+            }
+        }
+        TerminalEmulator.TextLine[] resized = new TerminalEmulator.TextLine[capacity];
+        for (int i = 0; i < keep; i++) {
+            resized[i] = lines[slot(dropped + i)];
+        }
+        lines = resized;
+        head = 0;
+        count = keep;
+        firstLineNumber += dropped;
+    }
+
+    private int slot(int offset) {
+        int index = head + offset;
+        int length = lines.length;
+        return index >= length ? index - length : index;
+    }
+}
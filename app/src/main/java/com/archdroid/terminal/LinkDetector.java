@@ -0,0 +1,203 @@
+package com.archdroid.terminal;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * URLs and file:line references on the screen, detected once per row change
+ * Rows of a {@link ScreenSnapshot} are immutable copies that are replaced
+ * whenever the row is modified, so the row object itself serves as the key of
+ * its modification version: {@link #update} only scans logical lines with a
+ * row it has not seen before and carries the spans of all other rows over,
+ * even when they moved up by scrolling. {@link #findLink} then answers a tap
+ * from the spans cached for that row.
+ */
+public final class LinkDetector {
+
+    /** Detected link; a reference may span several soft-wrapped rows */
+    public static final class Link {
+        private final String text;
+        private final boolean url;
+        private final int lineNumber;
+        private final int columnNumber;
+
+        Link(String text, boolean url, int lineNumber, int columnNumber) {
+            this.text = text;
+            this.url = url;
+            this.lineNumber = lineNumber;
+            this.columnNumber = columnNumber;
+        }
+
+        /** The URL, or the path of a file reference */
+        public String getText() {
+            return text;
+        }
+
+        public boolean isUrl() {
+            return url;
+        }
+
+        /** Line of a file reference, 0 for URLs */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        /** Column of a file reference, 0 when absent */
+        public int getColumnNumber() {
+            return columnNumber;
+        }
+    }
+
+    // Part of a link on one row, cells [startColumn, endColumn)
+    private static final class Span {
+        final int startColumn;
+        final int endColumn;
+        final Link link;
+
+        Span(int startColumn, int endColumn, Link link) {
+            this.startColumn = startColumn;
+            this.endColumn = endColumn;
+            this.link = link;
+        }
+    }
+
+    private static final Span[] NO_SPANS = new Span[0];
+
+    private static final Pattern LINK = Pattern.compile(
+        "(?<url>(?:https?|ftp|file)://[^\\s<>\"'`]+)"
+            + "|(?<![\\w/.~-])(?<path>(?:~|\\.{1,2})?/?(?:[\\w.+-]+/)*[\\w+-][\\w.+-]*\\.[A-Za-z0-9]+)"
+            + ":(?<line>\\d{1,7})(?::(?<column>\\d{1,5}))?");
+
+    private final LineCharSequence view = new LineCharSequence();
+    private final Matcher matcher = LINK.matcher(view);
+
+    private long snapshotVersion = -1;
+    private Span[][] rowSpans = new Span[0][];
+    private Map<TerminalEmulator.TextLine, Span[]> cache = new IdentityHashMap<>();
+
+    /** Bring the cached spans up to date with a snapshot; cheap when nothing changed */
+    public void update(ScreenSnapshot snapshot) {
+        if (snapshot.getVersion() == snapshotVersion) {
+            return;
+        }
+        int rows = snapshot.getHeight();
+        Span[][] spans = new Span[rows][];
+        Map<TerminalEmulator.TextLine, Span[]> next = new IdentityHashMap<>(rows * 2);
+
+        int row = 0;
+        while (row < rows) {
+            int end = row;
+            while (end + 1 < rows && snapshot.getRow(end).isWrapped()) {
+                end++;
+            }
+            boolean cached = true;
+            for (int r = row; r <= end && cached; r++) {
+                cached = cache.containsKey(snapshot.getRow(r));
+            }
+            if (cached) {
+                for (int r = row; r <= end; r++) {
+                    spans[r] = cache.get(snapshot.getRow(r));
+                }
+            } else {
+                detect(snapshot, row, end, spans);
+            }
+            for (int r = row; r <= end; r++) {
+                next.put(snapshot.getRow(r), spans[r]);
+            }
+            row = end + 1;
+        }
+
+        rowSpans = spans;
+        cache = next;
+        snapshotVersion = snapshot.getVersion();
+    }
+
+    /** Link covering a viewport cell of the last updated snapshot, or null */
+    public Link findLink(int row, int column) {
+        if (row < 0 || row >= rowSpans.length) {
+            return null;
+        }
+        for (Span span : rowSpans[row]) {
+            if (column >= span.startColumn && column < span.endColumn) {
+                return span.link;
+            }
+        }
+        return null;
+    }
+
+    private void detect(ScreenSnapshot snapshot, int fromRow, int toRow, Span[][] spans) {
+        view.clear();
+        for (int r = fromRow; r <= toRow; r++) {
+            view.append(r, snapshot.getRow(r));
+            spans[r] = NO_SPANS;
+        }
+        // Every link contains a ':', most lines of output do not
+        boolean candidate = false;
+        for (int i = 0; i < view.length() && !candidate; i++) {
+            candidate = view.charAt(i) == ':';
+        }
+        if (!candidate) {
+            return;
+        }
+
+        matcher.reset(view);
+        while (matcher.find()) {
+            Link link;
+            int start = matcher.start();
+            int end;
+            if (matcher.start("url") >= 0) {
+                end = trimUrl(start, matcher.end("url"));
+                link = new Link(view.subSequence(start, end).toString(), true, 0, 0);
+            } else {
+                end = matcher.end();
+                String column = matcher.group("column");
+                link = new Link(matcher.group("path"), false,
+                    Integer.parseInt(matcher.group("line")),
+                    column != null ? Integer.parseInt(column) : 0);
+            }
+            if (end > start) {
+                addSpans(view.toMatch(start, end), link, snapshot.getWidth(), spans);
+            }
+        }
+    }
+
+    // Punctuation ending a sentence, or a closing parenthesis that does not belong to the URL
+    private int trimUrl(int start, int end) {
+        int open = 0;
+        int close = 0;
+        for (int i = start; i < end; i++) {
+            char c = view.charAt(i);
+            if (c == '(') {
+                open++;
+            } else if (c == ')') {
+                close++;
+            }
+        }
+        while (end > start) {
+            char c = view.charAt(end - 1);
+            if (c == ')' && close > open) {
+                close--;
+            } else if (".,;:!?'\"]}>".indexOf(c) < 0) {
+                break;
+            }
+            end--;
+        }
+        return end;
+    }
+
+    private static void addSpans(SearchMatch match, Link link, int width, Span[][] spans) {
+        int startRow = (int) match.getLineNumber();
+        int endRow = (int) match.getEndLineNumber();
+        for (int r = startRow; r <= endRow; r++) {
+            Span span = new Span(r == startRow ? match.getColumn() : 0,
+                r == endRow ? match.getEndColumn() : width, link);
+            Span[] row = spans[r];
+            Span[] grown = new Span[row.length + 1];
+            System.arraycopy(row, 0, grown, 0, row.length);
+            grown[row.length] = span;
+            spans[r] = grown;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.archdroid.terminal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Regular expression search over the whole history, run in the background
+ * Logical lines (soft-wrapped rows joined) are copied one at a time into a
+ * reusable {@link LineCharSequence} while briefly holding the emulator's
+ * lock, and the pattern runs on that view outside the lock with a single
+ * reused {@link Matcher}. Hits are delivered in batches as they are found,
+ * oldest first, and the search can be cancelled at any time.
+ */
+public final class RegexSearch implements Runnable {
+
+    public interface Listener {
+        /** New hits, oldest first. Called on the search thread. */
+        void onMatches(List<SearchMatch> matches);
+
+        /** Called once when the search ends, including after cancellation */
+        void onFinished(boolean cancelled);
+    }
+
+    // Deliver a batch once it is this large, or after this many lines
+    private static final int BATCH_MATCHES = 64;
+    private static final int BATCH_LINES = 2048;
+
+    private final TerminalEmulator emulator;
+    private final Pattern pattern;
+    private final int limit;
+    private final Listener listener;
+    private volatile boolean cancelled = false;
+
+    public RegexSearch(TerminalEmulator emulator, Pattern pattern, int limit, Listener listener) {
+        this.emulator = emulator;
+        this.pattern = pattern;
+        this.limit = limit;
+        this.listener = listener;
+    }
+
+    public void start(Executor executor) {
+        executor.execute(this);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void run() {
+        LineCharSequence view = new LineCharSequence();
+        Matcher matcher = pattern.matcher(view);
+        List<SearchMatch> batch = new ArrayList<>();
+        int found = 0;
+        int linesSinceDelivery = 0;
+        // Stop at the screen as it was when the search started, so a flood of
+        // output cannot keep the search running forever
+        long stop = emulator.getScreenTopLineNumber() + emulator.getHeight();
+
+        long next = 0;
+        while (found < limit && next < stop && !isStopped()) {
+            long after = emulator.readLogicalLine(next, view);
+            if (after < 0) {
+                break;
+            }
+            matcher.reset(view);
+            while (found < limit && matcher.find()) {
+                if (matcher.end() > matcher.start()) {
+                    batch.add(view.toMatch(matcher.start(), matcher.end()));
+                    found++;
+                }
+            }
+            next = after;
+
+            linesSinceDelivery++;
+            if (!batch.isEmpty()
+                    && (batch.size() >= BATCH_MATCHES || linesSinceDelivery >= BATCH_LINES)) {
+                listener.onMatches(batch);
+                batch = new ArrayList<>();
+                linesSinceDelivery = 0;
+            }
+        }
+
+        if (!batch.isEmpty() && !isStopped()) {
+            listener.onMatches(batch);
+        }
+        listener.onFinished(isStopped());
+    }
+
+    private boolean isStopped() {
+        return cancelled || Thread.currentThread().isInterrupted();
+    }
+}
@@ -0,0 +1,138 @@
+package com.archdroid.terminal;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rendered viewport rows kept as bitmap strips between frames
+ * A strip belongs to the snapshot row it was painted from. Snapshot rows are
+ * immutable and replaced whenever the row changes, so a strip stays valid for
+ * as long as the same row object is in the frame, wherever it moved: scrolling
+ * only changes where strips are drawn, and a keystroke echo repaints one row.
+ */
+final class RowCache {
+
+    interface RowPainter {
+        /** Paint a row onto a strip already cleared to the background color */
+        void paintRow(Canvas canvas, TerminalEmulator.TextLine line);
+    }
+
+    private final RowPainter painter;
+    private final Canvas stripCanvas = new Canvas();
+    private final List<Bitmap> spare = new ArrayList<>();
+
+    private int stripWidth = 0;
+    private int stripHeight = 0;
+    private int background = 0;
+
+    // Strips of the last frame by viewport row, and the rows they show
+    private TerminalEmulator.TextLine[] rows = new TerminalEmulator.TextLine[0];
+    private Bitmap[] strips = new Bitmap[0];
+    private TerminalEmulator.TextLine[] nextRows = new TerminalEmulator.TextLine[0];
+    private Bitmap[] nextStrips = new Bitmap[0];
+
+    RowCache(RowPainter painter) {
+        this.painter = painter;
+    }
+
+    /** Match the strip size and background color, dropping all strips if they changed */
+    void configure(int width, int height, int backgroundColor) {
+        if (width != stripWidth || height != stripHeight || backgroundColor != background) {
+            invalidate();
+            stripWidth = width;
+            stripHeight = height;
+            background = backgroundColor;
+        }
+    }
+
+    /** Draw a frame with its first row at (left, top), painting only rows not cached */
+    void draw(Canvas canvas, ScreenSnapshot frame, float left, float top, float rowHeight) {
+        if (stripWidth <= 0 || stripHeight <= 0) {
+            return;
+        }
+        int count = frame.getHeight();
+        if (nextRows.length < count) {
+            nextRows = new TerminalEmulator.TextLine[count];
+            nextStrips = new Bitmap[count];
+        }
+
+        // Rows moved by scrolling are all found at the same offset, so try the
+        // offset of the previous match before searching
+        int offset = 0;
+        for (int row = 0; row < count; row++) {
+            TerminalEmulator.TextLine line = frame.getRow(row);
+            int match = find(line, row + offset);
+            nextRows[row] = line;
+            nextStrips[row] = null;
+            if (match >= 0) {
+                nextStrips[row] = strips[match];
+                strips[match] = null;
+                offset = match - row;
+            }
+        }
+        for (int i = 0; i < strips.length; i++) {
+            if (strips[i] != null) {
+                spare.add(strips[i]);
+                strips[i] = null;
+            }
+            rows[i] = null;
+        }
+
+        for (int row = 0; row < count; row++) {
+            if (nextStrips[row] == null) {
+                Bitmap strip = spare.isEmpty()
+                    ? Bitmap.createBitmap(stripWidth, stripHeight, Bitmap.Config.ARGB_8888)
+                    : spare.remove(spare.size() - 1);
+                strip.eraseColor(background);
+                stripCanvas.setBitmap(strip);
+                painter.paintRow(stripCanvas, nextRows[row]);
+                nextStrips[row] = strip;
+            }
+            canvas.drawBitmap(nextStrips[row], left, top + row * rowHeight, null);
+        }
+        stripCanvas.setBitmap(null);
+
+        // Rows that left the frame, for example after a resize, are not kept
+        for (Bitmap strip : spare) {
+            strip.recycle();
+        }
+        spare.clear();
+
+        TerminalEmulator.TextLine[] swapRows = rows;
+        rows = nextRows;
+        nextRows = swapRows;
+        Bitmap[] swapStrips = strips;
+        strips = nextStrips;
+        nextStrips = swapStrips;
+    }
+
+    /** Recycle every strip; the next frame is painted from scratch */
+    void invalidate() {
+        for (int i = 0; i < strips.length; i++) {
+            if (strips[i] != null) {
+                strips[i].recycle();
+                strips[i] = null;
+            }
+            rows[i] = null;
+        }
+        for (Bitmap strip : spare) {
+            strip.recycle();
+        }
+        spare.clear();
+    }
+
+    private int find(TerminalEmulator.TextLine line, int guess) {
+        if (guess >= 0 && guess < rows.length && rows[guess] == line && strips[guess] != null) {
+            return guess;
+        }
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] == line && strips[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
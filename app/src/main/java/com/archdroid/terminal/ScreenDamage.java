@@ -0,0 +1,172 @@
+package com.archdroid.terminal;
+
+import java.util.Arrays;
+
+/**
+ * What changed on the screen since it was last consumed
+ * The emulator keeps one to build snapshots and fills another through
+ * {@link TerminalEmulator#fetchDamage} for renderers. Dirty bits are already
+ * adjusted for the scroll delta: shifting the previous frame up by
+ * {@link #getScrollDelta()} rows leaves only the dirty rows and the two
+ * cursor positions to repaint.
+ */
+public class ScreenDamage {
+
+    private long[] dirtyRows = new long[1];
+    // Rows, numbered as before the scroll, that were dirty when they scrolled off the top
+    private long[] scrolledOffRows = new long[1];
+    private int rowCount;
+    private int scrollDelta;
+    private boolean fullRedraw;
+
+    private boolean cursorMoved;
+    private int previousCursorRow;
+    private int previousCursorCol;
+    private int cursorRow;
+    private int cursorCol;
+
+    public boolean isEmpty() {
+        if (fullRedraw || scrollDelta != 0 || cursorMoved) {
+            return false;
+        }
+        for (long word : dirtyRows) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The whole viewport must be repainted, for example after a resize */
+    public boolean isFullRedraw() {
+        return fullRedraw;
+    }
+
+    public boolean isRowDirty(int row) {
+        if (fullRedraw) {
+            return true;
+        }
+        if (row < 0 || row >= rowCount) {
+            return false;
+        }
+        return (dirtyRows[row >> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Whether the row that was at {@code row} before the scroll was changed
+     * before it scrolled off the top into history
+     */
+    public boolean isScrolledOffRowDirty(int row) {
+        if (fullRedraw || row >= scrollDelta) {
+            return true;
+        }
+        if (row < 0 || row >= rowCount) {
+            return false;
+        }
+        return (scrolledOffRows[row >> 6] & (1L << row)) != 0;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** Number of rows the content moved up */
+    public int getScrollDelta() {
+        return scrollDelta;
+    }
+
+    public boolean isCursorMoved() {
+        return cursorMoved;
+    }
+
+    public int getPreviousCursorRow() {
+        return previousCursorRow;
+    }
+
+    public int getPreviousCursorCol() {
+        return previousCursorCol;
+    }
+
+    public int getCursorRow() {
+        return cursorRow;
+    }
+
+    public int getCursorCol() {
+        return cursorCol;
+    }
+
+    void setRowCount(int rows) {
+        rowCount = rows;
+        int words = (rows + 63) >> 6;
+        if (dirtyRows.length < words) {
+            dirtyRows = Arrays.copyOf(dirtyRows, words);
+            scrolledOffRows = Arrays.copyOf(scrolledOffRows, words);
+        }
+    }
+
+    void markRow(int row) {
+        if (row >= 0 && row < rowCount) {
+            dirtyRows[row >> 6] |= 1L << row;
+        }
+    }
+
+    void markRows(int fromRow, int toRow) {
+        for (int row = Math.max(0, fromRow); row < toRow && row < rowCount; row++) {
+            dirtyRows[row >> 6] |= 1L << row;
+        }
+    }
+
+    void markAll() {
+        fullRedraw = true;
+    }
+
+    /** Content moved up by one row; the freshly exposed bottom row is dirty */
+    void scrollUp() {
+        if (fullRedraw) {
+            return;
+        }
+        // Past a screenful every row is dirty, but the delta keeps counting so a
+        // viewport scrolled back into history can tell how far the screen moved
+        if (scrollDelta < rowCount && (dirtyRows[0] & 1) != 0) {
+            scrolledOffRows[scrollDelta >> 6] |= 1L << scrollDelta;
+        }
+        scrollDelta++;
+        int words = (rowCount + 63) >> 6;
+        for (int i = 0; i < words; i++) {
+            long carry = i + 1 < words ? dirtyRows[i + 1] << 63 : 0;
+            dirtyRows[i] = (dirtyRows[i] >>> 1) | carry;
+        }
+        markRow(rowCount - 1);
+    }
+
+    void setCursor(int previousRow, int previousCol, int row, int col) {
+        previousCursorRow = previousRow;
+        previousCursorCol = previousCol;
+        cursorRow = row;
+        cursorCol = col;
+        cursorMoved = previousRow != row || previousCol != col;
+    }
+
+    void copyFrom(ScreenDamage other) {
+        setRowCount(other.rowCount);
+        Arrays.fill(dirtyRows, 0);
+        System.arraycopy(other.dirtyRows, 0, dirtyRows, 0, (rowCount + 63) >> 6);
+        Arrays.fill(scrolledOffRows, 0);
+        System.arraycopy(other.scrolledOffRows, 0, scrolledOffRows, 0, (rowCount + 63) >> 6);
+        scrollDelta = other.scrollDelta;
+        fullRedraw = other.fullRedraw;
+        cursorMoved = other.cursorMoved;
+        previousCursorRow = other.previousCursorRow;
+        previousCursorCol = other.previousCursorCol;
+        cursorRow = other.cursorRow;
+        cursorCol = other.cursorCol;
+    }
+
+    void clear() {
+        Arrays.fill(dirtyRows, 0);
+        Arrays.fill(scrolledOffRows, 0);
+        scrollDelta = 0;
+        fullRedraw = false;
+        cursorMoved = false;
+    }
+}
@@ -0,0 +1,88 @@
+package com.archdroid.terminal;
+
+/**
+ * Immutable frame of the viewport published by {@link TerminalEmulator}
+ * Rows are private copies that are never modified after publication, so a
+ * renderer can read a whole frame without locking and without tearing.
+ * Consecutive snapshots share the rows that did not change; each row carries
+ * the version of the snapshot that copied it, so caches keyed by row version
+ * stay valid for as long as the row is unchanged.
+ */
+public final class ScreenSnapshot {
+
+    private final long version;
+    private final TerminalEmulator.TextLine[] rows;
+    private final long[] rowVersions;
+    private final int width;
+    private final int cursorRow;
+    private final int cursorCol;
+    private final boolean cursorVisible;
+    private final boolean alternateScreen;
+    private final int scrollOffset;
+
+    ScreenSnapshot(long version, TerminalEmulator.TextLine[] rows, long[] rowVersions,
+                   int width, int cursorRow, int cursorCol, boolean cursorVisible,
+                   boolean alternateScreen, int scrollOffset) {
+        this.version = version;
+        this.rows = rows;
+        this.rowVersions = rowVersions;
+        this.width = width;
+        this.cursorRow = cursorRow;
+        this.cursorCol = cursorCol;
+        this.cursorVisible = cursorVisible;
+        this.alternateScreen = alternateScreen;
+        this.scrollOffset = scrollOffset;
+    }
+
+    /** Increases with every published snapshot */
+    public long getVersion() {
+        return version;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return rows.length;
+    }
+
+    /** Viewport row; must not be modified */
+    public TerminalEmulator.TextLine getRow(int row) {
+        return rows[row];
+    }
+
+    /** Version of the snapshot in which the row last changed */
+    public long getRowVersion(int row) {
+        return rowVersions[row];
+    }
+
+    public int getCursorRow() {
+        return cursorRow;
+    }
+
+    public int getCursorCol() {
+        return cursorCol;
+    }
+
+    public boolean isCursorVisible() {
+        return cursorVisible;
+    }
+
+    public boolean isAlternateScreen() {
+        return alternateScreen;
+    }
+
+    /** Rows the viewport is scrolled back into history, 0 when live */
+    public int getScrollOffset() {
+        return scrollOffset;
+    }
+
+    TerminalEmulator.TextLine[] rows() {
+        return rows;
+    }
+
+    long[] rowVersions() {
+        return rowVersions;
+    }
+}
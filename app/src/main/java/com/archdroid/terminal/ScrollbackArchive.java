@@ -0,0 +1,320 @@
+package com.archdroid.terminal;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cold tier of the scrollback history
+ * Lines evicted from the in-memory {@link LineRing} are serialized into a
+ * pending buffer and, once a block is full, frozen into an immutable deflated
+ * block. Every block holds {@link #BLOCK_LINES} lines, so a line's block is
+ * found by division. Blocks are only inflated again when one of their lines is
+ * scrolled into view or searched, and a few recently inflated blocks are cached.
+ */
+class ScrollbackArchive {
+
+    interface EvictionListener {
+        /**
+         * Called with the oldest block as it is dropped, still deflated; see
+         * {@link #decodeBlock} for reading it back
+         */
+        void onBlockEvicted(long firstLineNumber, int lineCount, byte[] compressed, int rawLength);
+    }
+
+    static final int BLOCK_LINES = 256;
+    private static final int DECODED_CACHE_BLOCKS = 4;
+
+    private static final class Block {
+        final long firstLineNumber;
+        final int lineCount;
+        final int rawLength;
+        final byte[] compressed;
+
+        Block(long firstLineNumber, int lineCount, int rawLength, byte[] compressed) {
+            this.firstLineNumber = firstLineNumber;
+            this.lineCount = lineCount;
+            this.rawLength = rawLength;
+            this.compressed = compressed;
+        }
+    }
+
+    private final List<Block> blocks = new ArrayList<>();
+    // Inflated blocks, each in the slot of its block number modulo the cache size
+    private final Block[] decodedBlocks = new Block[DECODED_CACHE_BLOCKS];
+    private final TerminalEmulator.TextLine[][] decodedLines =
+        new TerminalEmulator.TextLine[DECODED_CACHE_BLOCKS][];
+
+    // Lines serialized since the last block was frozen, in bulk into one array
+    private ByteBuffer pendingBytes = ByteBuffer.allocate(64 * 1024);
+    private final int[] pendingOffsets = new int[BLOCK_LINES + 1];
+    private int pendingCount = 0;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private byte[] deflateBuffer = new byte[8192];
+
+    private final StyleTable styles;
+    private EvictionListener evictionListener;
+    private int capacity;
+    private long firstLineNumber = 0;
+    private int blockLineCount = 0;
+
+    ScrollbackArchive(int capacity, StyleTable styles) {
+        this.capacity = Math.max(0, capacity);
+        this.styles = styles;
+    }
+
+    int size() {
+        return blockLineCount + pendingCount;
+    }
+
+    long firstLineNumber() {
+        return firstLineNumber;
+    }
+
+    long endLineNumber() {
+        return firstLineNumber + size();
+    }
+
+    /** Memory held by compressed blocks; tests use it to check the compression ratio */
+    long compressedBytes() {
+        long total = 0;
+        for (Block block : blocks) {
+            total += block.compressed.length;
+        }
+        return total;
+    }
+
+    void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    void setCapacity(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        if (this.capacity == 0) {
+            firstLineNumber = endLineNumber();
+            clear();
+        }
+        trim();
+    }
+
+    /**
+     * Append the line with the given absolute number. Lines must arrive in
+     * order; a gap (for example after the ring was shrunk) restarts the archive.
+     */
+    void append(long lineNumber, TerminalEmulator.TextLine line) {
+        if (capacity == 0) {
+            firstLineNumber = lineNumber + 1;
+            return;
+        }
+        if (lineNumber != endLineNumber()) {
+            clear();
+            firstLineNumber = lineNumber;
+        }
+
+        int bound = line.encodedSizeBound();
+        if (pendingBytes.remaining() < bound) {
+            int capacity = Math.max(pendingBytes.capacity() * 2, pendingBytes.position() + bound);
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            pendingBytes.flip();
+            grown.put(pendingBytes);
+            pendingBytes = grown;
+        }
+        line.writeTo(pendingBytes);
+        pendingCount++;
+        pendingOffsets[pendingCount] = pendingBytes.position();
+
+        if (pendingCount == BLOCK_LINES) {
+            freezePending();
+        }
+        trim();
+    }
+
+    /**
+     * Line with the given absolute number, or null if it is not archived.
+     * The returned line belongs to the archive and must not be modified.
+     */
+    TerminalEmulator.TextLine get(long lineNumber) {
+        if (lineNumber < firstLineNumber || lineNumber >= endLineNumber()) {
+            return null;
+        }
+
+        long pendingStart = endLineNumber() - pendingCount;
+        if (lineNumber >= pendingStart) {
+            int index = (int) (lineNumber - pendingStart);
+            return TerminalEmulator.TextLine.readFrom(ByteBuffer.wrap(pendingBytes.array(),
+                pendingOffsets[index], pendingOffsets[index + 1] - pendingOffsets[index]), styles);
+        }
+
+        int index = (int) ((lineNumber - firstLineNumber) / BLOCK_LINES);
+        Block block = blocks.get(index);
+        int slot = (int) ((block.firstLineNumber / BLOCK_LINES) % DECODED_CACHE_BLOCKS);
+        if (decodedBlocks[slot] != block) {
+            decodedLines[slot] = inflate(block);
+            decodedBlocks[slot] = block;
+        }
+        return decodedLines[slot][(int) (lineNumber - block.firstLineNumber)];
+    }
+
+    /**
+     * Detached view of the archived lines, for a search running outside the
+     * emulator's lock. Called with the lock held. Frozen blocks are immutable
+     * and shared; the pending lines are copied.
+     */
+    Reader reader() {
+        return new Reader(firstLineNumber, blocks.toArray(new Block[0]),
+            Arrays.copyOf(pendingBytes.array(), pendingBytes.position()),
+            Arrays.copyOf(pendingOffsets, pendingCount + 1), endLineNumber());
+    }
+
+    /** Reads archived lines, without their styles, on the thread that created it */
+    static final class Reader implements HistoryReflow.LineSource {
+        private final long firstLineNumber;
+        private final Block[] blocks;
+        private final byte[] pendingBytes;
+        private final int[] pendingOffsets;
+        private final long pendingStart;
+        private final long endLineNumber;
+        private final Inflater inflater = new Inflater();
+
+        private Block decodedBlock;
+        private TerminalEmulator.TextLine[] decodedLines;
+
+        private Reader(long firstLineNumber, Block[] blocks, byte[] pendingBytes,
+                       int[] pendingOffsets, long endLineNumber) {
+            this.firstLineNumber = firstLineNumber;
+            this.blocks = blocks;
+            this.pendingBytes = pendingBytes;
+            this.pendingOffsets = pendingOffsets;
+            this.pendingStart = endLineNumber - (pendingOffsets.length - 1);
+            this.endLineNumber = endLineNumber;
+        }
+
+        @Override
+        public TerminalEmulator.TextLine get(long lineNumber) {
+            if (lineNumber < firstLineNumber || lineNumber >= endLineNumber) {
+                return null;
+            }
+            if (lineNumber >= pendingStart) {
+                int index = (int) (lineNumber - pendingStart);
+                return TerminalEmulator.TextLine.readFrom(ByteBuffer.wrap(pendingBytes,
+                    pendingOffsets[index], pendingOffsets[index + 1] - pendingOffsets[index]),
+                    null);
+            }
+            Block block = blocks[(int) ((lineNumber - firstLineNumber) / BLOCK_LINES)];
+            if (block != decodedBlock) {
+                decodedLines = decodeBlock(inflater, block.compressed, block.compressed.length,
+                    block.rawLength, block.lineCount, null);
+                decodedBlock = block;
+            }
+            return decodedLines[(int) (lineNumber - block.firstLineNumber)];
+        }
+
+        void close() {
+            inflater.end();
+        }
+    }
+
+    /** Drop the inflated blocks, whose lines hold style IDs about to be reclaimed */
+    void dropDecoded() {
+        Arrays.fill(decodedBlocks, null);
+        Arrays.fill(decodedLines, null);
+    }
+
+    void clear() {
+        blocks.clear();
+        dropDecoded();
+        pendingBytes.clear();
+        pendingCount = 0;
+        blockLineCount = 0;
+    }
+
+    private void freezePending() {
+        int rawLength = pendingBytes.position();
+        deflater.reset();
+        deflater.setInput(pendingBytes.array(), 0, rawLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == deflateBuffer.length) {
+                deflateBuffer = Arrays.copyOf(deflateBuffer, length * 2);
+            }
+            length += deflater.deflate(deflateBuffer, length, deflateBuffer.length - length);
+        }
+
+        long blockStart = endLineNumber() - pendingCount;
+        blocks.add(new Block(blockStart, pendingCount, rawLength,
+            Arrays.copyOf(deflateBuffer, length)));
+        blockLineCount += pendingCount;
+
+        pendingBytes.clear();
+        pendingCount = 0;
+    }
+
+    private void trim() {
+        // Drop whole blocks; the archive may overshoot its capacity by less than one block
+        // Evicting shifts the remaining blocks down by one; at a few hundred at most that is cheap
+        while (!blocks.isEmpty() && size() - blocks.get(0).lineCount >= capacity) {
+            Block evicted = blocks.remove(0);
+            blockLineCount -= evicted.lineCount;
+            firstLineNumber += evicted.lineCount;
+            for (int slot = 0; slot < DECODED_CACHE_BLOCKS; slot++) {
+                if (decodedBlocks[slot] == evicted) {
+                    decodedBlocks[slot] = null;
+                    decodedLines[slot] = null;
+                }
+            }
+            if (evictionListener != null) {
+                evictionListener.onBlockEvicted(evicted.firstLineNumber, evicted.lineCount,
+                    evicted.compressed, evicted.rawLength);
+            }
+        }
+    }
+
+    private TerminalEmulator.TextLine[] inflate(Block block) {
+        return decodeBlock(inflater, block.compressed, block.compressed.length, block.rawLength,
+            block.lineCount, styles);
+    }
+
+    /**
+     * Inflate and deserialize a block of {@code lineCount} lines; without a
+     * style table the lines carry no styles
+     */
+    static TerminalEmulator.TextLine[] decodeBlock(Inflater inflater, byte[] compressed,
+                                                   int compressedLength, int rawLength,
+                                                   int lineCount, StyleTable styles) {
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        try {
+            int offset = 0;
+            while (offset < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, offset, raw.length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated scrollback block");
+                }
+                offset += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt scrollback block", e);
+        }
+
+        TerminalEmulator.TextLine[] lines = new TerminalEmulator.TextLine[lineCount];
+        ByteBuffer in = ByteBuffer.wrap(raw);
+        try {
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = TerminalEmulator.TextLine.readFrom(in, styles);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                 | IllegalArgumentException e) {
+            throw new IllegalStateException("Corrupt scrollback block", e);
+        }
+        return lines;
+    }
+}
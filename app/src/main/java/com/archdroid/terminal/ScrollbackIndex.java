@@ -0,0 +1,164 @@
+package com.archdroid.terminal;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Trigram filter over the committed scrollback history
+ * Every line leaving the in-memory ring is added to the block covering its
+ * line number. A block keeps a bit set of the hashes of all case-folded
+ * trigrams in the logical lines starting in it, so a substring search only
+ * has to read the logical lines of blocks whose bits contain every trigram of
+ * the query. Rows continuing a soft-wrapped line are hashed into the block the
+ * line started in, together with the trigrams spanning the wrap. Blocks leave
+ * the index as their lines leave the archive.
+ */
+class ScrollbackIndex {
+
+    // Blocks line up with the archive's, so a block's bits travel with it to the spill
+    private static final int BLOCK_LINES = ScrollbackArchive.BLOCK_LINES;
+    // Large enough that a block of dense text keeps a low false positive rate
+    private static final int BLOCK_BITS = 1 << 14;
+    static final int BLOCK_WORDS = BLOCK_BITS / 64;
+
+    static final class Block {
+        final long firstLineNumber;
+        int lineCount;
+        final long[] bits = new long[BLOCK_WORDS];
+
+        Block(long firstLineNumber) {
+            this.firstLineNumber = firstLineNumber;
+        }
+
+        long endLineNumber() {
+            return firstLineNumber + lineCount;
+        }
+
+    }
+
+    private final ArrayDeque<Block> blocks = new ArrayDeque<>();
+    private int[] folded = new int[256];
+
+    // The soft-wrapped line being added: the block it started in and its last
+    // two folded code points, which form trigrams with the next row
+    private Block lineBlock;
+    private long nextLineNumber = -1;
+    private final int[] tail = new int[2];
+    private int tailLength = 0;
+
+    /** Index a line as it is committed to history */
+    void add(long lineNumber, TerminalEmulator.TextLine line) {
+        Block block = blocks.peekLast();
+        if (block == null || lineNumber != block.endLineNumber()
+                || block.lineCount == BLOCK_LINES) {
+            if (block != null && lineNumber < block.endLineNumber()) {
+                // Numbering went backwards: the history was rebuilt
+                clear();
+            }
+            block = new Block(lineNumber);
+            blocks.addLast(block);
+        }
+        block.lineCount++;
+
+        int carried = 0;
+        if (lineBlock != null && lineNumber == nextLineNumber) {
+            block = lineBlock;
+            carried = tailLength;
+        } else {
+            lineBlock = block;
+        }
+        int count = foldLine(line, carried);
+        for (int i = 2; i < count; i++) {
+            int bit = hash(folded[i - 2], folded[i - 1], folded[i]);
+            block.bits[bit >>> 6] |= 1L << bit;
+        }
+
+        if (line.isWrapped()) {
+            tailLength = Math.min(2, count);
+            System.arraycopy(folded, count - tailLength, tail, 0, tailLength);
+            nextLineNumber = lineNumber + 1;
+        } else {
+            lineBlock = null;
+        }
+    }
+
+    /**
+     * OR the bits of every block overlapping the lines [from, to) into
+     * {@code into}. Returns false if no block overlaps.
+     */
+    boolean collectBits(long from, long to, long[] into) {
+        boolean found = false;
+        for (Block block : blocks) {
+            if (block.firstLineNumber >= to) {
+                break;
+            }
+            if (block.endLineNumber() > from) {
+                for (int i = 0; i < BLOCK_WORDS; i++) {
+                    into[i] |= block.bits[i];
+                }
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /** Forget blocks that lie entirely before the given line */
+    void trim(long firstLineNumber) {
+        while (!blocks.isEmpty() && blocks.peekFirst().endLineNumber() <= firstLineNumber) {
+            if (blocks.removeFirst() == lineBlock) {
+                lineBlock = null;
+            }
+        }
+    }
+
+    void clear() {
+        blocks.clear();
+        lineBlock = null;
+    }
+
+    /** Blocks from oldest to newest */
+    Iterator<Block> blocks() {
+        return blocks.iterator();
+    }
+
+    /** Whether every one of the first {@code count} hashes is set in a block's bits */
+    static boolean containsAll(long[] bits, int[] hashes, int count) {
+        for (int i = 0; i < count; i++) {
+            int bit = hashes[i];
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Bit index of a case-folded trigram */
+    static int hash(int a, int b, int c) {
+        int h = (a * 31 + b) * 31 + c;
+        h *= 0x9E3779B1;
+        return (h ^ (h >>> 15)) & (BLOCK_BITS - 1);
+    }
+
+    static int fold(int codePoint) {
+        return codePoint < 0x80
+            ? (codePoint >= 'A' && codePoint <= 'Z' ? codePoint + 32 : codePoint)
+            : Character.toLowerCase(codePoint);
+    }
+
+    /** Fold the line's code points after the {@code carried} ones from the previous row */
+    private int foldLine(TerminalEmulator.TextLine line, int carried) {
+        int size = line.size();
+        if (folded.length < size + carried) {
+            folded = new int[size + carried];
+        }
+        System.arraycopy(tail, 0, folded, 0, carried);
+        int count = carried;
+        for (int i = 0; i < size; i++) {
+            int codePoint = line.getCodePoint(i);
+            if (codePoint != TerminalEmulator.TextLine.WIDE_TAIL) {
+                folded[count++] = fold(codePoint);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,475 @@
+package com.archdroid.terminal;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+/**
+ * Disk tier of the scrollback history
+ * Blocks evicted from the {@link ScrollbackArchive} are appended to a data file
+ * in the app's cache directory exactly as the archive deflated them. A
+ * separate index file holds one fixed-size entry per block: offset and sizes
+ * in the data file, then the block's trigram bits from the search index, so
+ * searches skip spilled blocks without inflating them. Every block but the
+ * last holds {@link ScrollbackArchive#BLOCK_LINES} lines, so any line is
+ * located in O(1).
+ * The size limit is split between a few segments, each a data and index file
+ * pair. When the newest segment is full a new one is started, and at the
+ * limit the oldest segment is deleted, so the spill keeps the newest history
+ * the way the in-memory tiers do. Only an I/O error disables the spill.
+ * Each spill keeps its files in a session directory of its own and holds a
+ * lock on it while alive. A process killed before releasing its spill leaves
+ * the directory unlocked, and the next spill created there deletes it.
+ * Blocks are read back with positional reads into a small reusable buffer and
+ * the last one decoded is kept, keeping the Java heap flat however long the
+ * session runs. Searches read a {@link Snapshot} of the blocks with buffers
+ * of their own, outside the emulator's lock.
+ */
+class ScrollbackSpill {
+
+    // Offset and compressed length in the data file, raw length and line count
+    private static final int HEADER_SIZE = Long.BYTES + 3 * Integer.BYTES;
+    private static final int BITS_SIZE = ScrollbackIndex.BLOCK_WORDS * Long.BYTES;
+    private static final int INDEX_ENTRY_SIZE = HEADER_SIZE + BITS_SIZE;
+
+    // Dropping a segment at the limit discards this fraction of the spilled history
+    private static final int SEGMENTS = 4;
+
+    private static final String SESSION_PREFIX = "session";
+    private static final String LOCK_NAME = "lock";
+
+    /** A data and index file pair holding consecutive blocks */
+    private static final class Segment {
+        final File dataFile;
+        final File indexFile;
+        final RandomAccessFile data;
+        final RandomAccessFile index;
+        final FileChannel dataChannel;
+        final FileChannel indexChannel;
+        int blockCount = 0;
+        long dataLength = 0;
+
+        Segment(File directory) throws IOException {
+            dataFile = File.createTempFile("scrollback", ".dat", directory);
+            indexFile = new File(directory, dataFile.getName().replace(".dat", ".idx"));
+            data = new RandomAccessFile(dataFile, "rw");
+            index = new RandomAccessFile(indexFile, "rw");
+            dataChannel = data.getChannel();
+            indexChannel = index.getChannel();
+        }
+
+        long bytes() {
+            return dataLength + (long) blockCount * INDEX_ENTRY_SIZE;
+        }
+
+        void delete() {
+            try {
+                data.close();
+                index.close();
+            } catch (IOException e) {
+                // Nothing useful to do; the files are deleted below regardless
+            }
+            dataFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /** Reads blocks back from segments into buffers of its own, so one per thread */
+    private static final class BlockReader {
+        private final StyleTable styles;
+        private final ByteBuffer indexEntry = ByteBuffer.allocate(HEADER_SIZE);
+        private final ByteBuffer bitsEntry = ByteBuffer.allocate(BITS_SIZE);
+        private final Inflater inflater = new Inflater();
+        private byte[] readBuffer = new byte[8192];
+
+        BlockReader(StyleTable styles) {
+            this.styles = styles;
+        }
+
+        void readBits(Segment segment, int block, long[] bits) throws IOException {
+            bitsEntry.clear();
+            readFully(segment.indexChannel, bitsEntry,
+                (long) block * INDEX_ENTRY_SIZE + HEADER_SIZE);
+            bitsEntry.flip();
+            bitsEntry.asLongBuffer().get(bits);
+        }
+
+        TerminalEmulator.TextLine[] readBlock(Segment segment, int block) throws IOException {
+            indexEntry.clear();
+            readFully(segment.indexChannel, indexEntry, (long) block * INDEX_ENTRY_SIZE);
+            indexEntry.flip();
+            long offset = indexEntry.getLong();
+            int compressedLength = indexEntry.getInt();
+            int rawLength = indexEntry.getInt();
+            int count = indexEntry.getInt();
+
+            if (readBuffer.length < compressedLength) {
+                readBuffer = new byte[Math.max(compressedLength, readBuffer.length * 2)];
+            }
+            readFully(segment.dataChannel, ByteBuffer.wrap(readBuffer, 0, compressedLength),
+                offset);
+            return ScrollbackArchive.decodeBlock(inflater, readBuffer, compressedLength,
+                rawLength, count, styles);
+        }
+
+        void end() {
+            inflater.end();
+        }
+    }
+
+    /**
+     * The blocks spilled when it was captured, read without their styles by a
+     * search running outside the emulator's lock. Blocks whose segment has
+     * been dropped since read as missing.
+     */
+    static final class Snapshot implements HistoryReflow.LineSource {
+        private final Segment[] segments;
+        private final int[] blockCounts;
+        private final long firstLineNumber;
+        private final long endLineNumber;
+        private final int blockCount;
+        private final BlockReader reader = new BlockReader(null);
+
+        private long decodedFirstLineNumber = -1;
+        private TerminalEmulator.TextLine[] decodedLines;
+
+        private Snapshot(ScrollbackSpill spill) {
+            segments = spill.segments.toArray(new Segment[0]);
+            blockCounts = new int[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                blockCounts[i] = segments[i].blockCount;
+            }
+            firstLineNumber = spill.firstLineNumber;
+            endLineNumber = spill.endLineNumber();
+            blockCount = spill.blockCount;
+        }
+
+        int blockCount() {
+            return blockCount;
+        }
+
+        long blockFirstLineNumber(int block) {
+            return firstLineNumber + (long) block * ScrollbackArchive.BLOCK_LINES;
+        }
+
+        /** Read the search index bits of a block; false if it is gone */
+        boolean readBits(int block, long[] bits) {
+            int local = block;
+            for (int i = 0; i < segments.length; i++) {
+                if (local < blockCounts[i]) {
+                    try {
+                        reader.readBits(segments[i], local, bits);
+                        return true;
+                    } catch (IOException e) {
+                        return false;
+                    }
+                }
+                local -= blockCounts[i];
+            }
+            return false;
+        }
+
+        @Override
+        public TerminalEmulator.TextLine get(long lineNumber) {
+            if (lineNumber < firstLineNumber || lineNumber >= endLineNumber) {
+                return null;
+            }
+            int block = (int) ((lineNumber - firstLineNumber) / ScrollbackArchive.BLOCK_LINES);
+            long blockStart = blockFirstLineNumber(block);
+            if (blockStart != decodedFirstLineNumber) {
+                decodedLines = null;
+                decodedFirstLineNumber = -1;
+                int local = block;
+                for (int i = 0; i < segments.length && decodedLines == null; i++) {
+                    if (local < blockCounts[i]) {
+                        try {
+                            decodedLines = reader.readBlock(segments[i], local);
+                        } catch (IOException | IllegalStateException e) {
+                            return null;
+                        }
+                    }
+                    local -= blockCounts[i];
+                }
+                if (decodedLines == null) {
+                    return null;
+                }
+                decodedFirstLineNumber = blockStart;
+            }
+            return decodedLines[(int) (lineNumber - blockStart)];
+        }
+
+        void close() {
+            reader.end();
+        }
+    }
+
+    private final File sessionDirectory;
+    private final RandomAccessFile lockFile;
+    private final FileLock sessionLock;
+    private final long segmentBytes;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer bitsEntry = ByteBuffer.allocate(BITS_SIZE);
+    private final BlockReader reader;
+
+    // Last block read back, so scrolling through it inflates it once
+    private long decodedFirstLineNumber = -1;
+    private TerminalEmulator.TextLine[] decodedLines;
+
+    private long firstLineNumber = 0;
+    private int lineCount = 0;
+    private int blockCount = 0;
+    private boolean disabled = false;
+
+    ScrollbackSpill(File directory, StyleTable styles, long maxBytes) throws IOException {
+        this.reader = new BlockReader(styles);
+        this.segmentBytes = maxBytes / SEGMENTS;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        sweepStaleSessions(directory);
+        // A unique name from createTempFile, turned into a directory
+        sessionDirectory = File.createTempFile(SESSION_PREFIX, "", directory);
+        if (!sessionDirectory.delete() || !sessionDirectory.mkdir()) {
+            throw new IOException("Cannot create " + sessionDirectory);
+        }
+        lockFile = new RandomAccessFile(new File(sessionDirectory, LOCK_NAME), "rw");
+        sessionLock = lockFile.getChannel().lock();
+    }
+
+    int size() {
+        return lineCount;
+    }
+
+    long firstLineNumber() {
+        return firstLineNumber;
+    }
+
+    long endLineNumber() {
+        return firstLineNumber + lineCount;
+    }
+
+    /** Whether the spill gave up after an I/O error */
+    boolean isDisabled() {
+        return disabled;
+    }
+
+    long blockFirstLineNumber(int block) {
+        return firstLineNumber + (long) block * ScrollbackArchive.BLOCK_LINES;
+    }
+
+    /**
+     * Append a deflated block of consecutive lines starting at the given
+     * absolute number, with its search index bits. A gap in numbering restarts
+     * the spill from the new block; at the size limit the oldest segment is
+     * dropped to make room.
+     */
+    void append(long startLineNumber, int count, byte[] compressed, int rawLength,
+                long[] bits) {
+        if (disabled) {
+            return;
+        }
+        try {
+            if (startLineNumber != endLineNumber()) {
+                clear(startLineNumber);
+            } else if (blockCount > 0 && lastBlockLines() != ScrollbackArchive.BLOCK_LINES) {
+                // Only the newest block may be short, or lines could not be located
+                clear(startLineNumber);
+            }
+            long entryBytes = compressed.length + INDEX_ENTRY_SIZE;
+            if (entryBytes > segmentBytes) {
+                // Could never be stored; the history restarts after it
+                clear(startLineNumber + count);
+                return;
+            }
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.bytes() + entryBytes > segmentBytes) {
+                if (segments.size() == SEGMENTS) {
+                    dropOldestSegment();
+                }
+                segment = new Segment(sessionDirectory);
+                segments.addLast(segment);
+            }
+
+            ByteBuffer bytes = ByteBuffer.wrap(compressed);
+            while (bytes.hasRemaining()) {
+                segment.dataChannel.write(bytes, segment.dataLength + bytes.position());
+            }
+            long indexLength = (long) segment.blockCount * INDEX_ENTRY_SIZE;
+            indexEntry.clear();
+            indexEntry.putLong(segment.dataLength).putInt(compressed.length).putInt(rawLength)
+                .putInt(count);
+            indexEntry.flip();
+            while (indexEntry.hasRemaining()) {
+                segment.indexChannel.write(indexEntry, indexLength + indexEntry.position());
+            }
+            bitsEntry.clear();
+            bitsEntry.asLongBuffer().put(bits);
+            while (bitsEntry.hasRemaining()) {
+                segment.indexChannel.write(bitsEntry,
+                    indexLength + HEADER_SIZE + bitsEntry.position());
+            }
+            segment.dataLength += compressed.length;
+            segment.blockCount++;
+            lineCount += count;
+            blockCount++;
+        } catch (IOException e) {
+            // Out of disk space or the cache was cleared under us
+            disable();
+        }
+    }
+
+    /**
+     * Line with the given absolute number read back from disk, or null if it
+     * is not spilled
+     */
+    TerminalEmulator.TextLine get(long lineNumber) {
+        if (disabled || lineNumber < firstLineNumber || lineNumber >= endLineNumber()) {
+            return null;
+        }
+        long line = lineNumber - firstLineNumber;
+        int block = (int) (line / ScrollbackArchive.BLOCK_LINES);
+        long blockStart = blockFirstLineNumber(block);
+        if (blockStart != decodedFirstLineNumber) {
+            try {
+                decodedLines = readBlock(block);
+                decodedFirstLineNumber = blockStart;
+            } catch (IOException | IllegalStateException e) {
+                disable();
+                return null;
+            }
+        }
+        return decodedLines[(int) (lineNumber - blockStart)];
+    }
+
+    /** The blocks spilled so far, for a search; called with the emulator's lock held */
+    Snapshot capture() {
+        return new Snapshot(this);
+    }
+
+    /** Drop the block last read back, whose lines hold style IDs about to be reclaimed */
+    void dropDecoded() {
+        decodedLines = null;
+        decodedFirstLineNumber = -1;
+    }
+
+    /** Close the files and delete them, with the session directory, from the cache directory */
+    void release() {
+        decodedLines = null;
+        reader.end();
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        try {
+            sessionLock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            // Nothing useful to do; the directory is deleted below regardless
+        }
+        deleteDirectory(sessionDirectory);
+    }
+
+    /** Delete the session directories of spills whose process died without releasing them */
+    private static void sweepStaleSessions(File directory) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            File lock = new File(child, LOCK_NAME);
+            if (!child.getName().startsWith(SESSION_PREFIX) || !lock.isFile()) {
+                continue;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(lock, "rw")) {
+                FileLock held = file.getChannel().tryLock();
+                if (held == null) {
+                    // Held by a live session in another process
+                    continue;
+                }
+                held.release();
+            } catch (OverlappingFileLockException e) {
+                // Held by a live session in this process
+                continue;
+            } catch (IOException e) {
+                continue;
+            }
+            deleteDirectory(child);
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private TerminalEmulator.TextLine[] readBlock(int block) throws IOException {
+        Segment segment = null;
+        int local = block;
+        for (Segment candidate : segments) {
+            if (local < candidate.blockCount) {
+                segment = candidate;
+                break;
+            }
+            local -= candidate.blockCount;
+        }
+        if (segment == null) {
+            throw new EOFException("Scrollback spill ends early");
+        }
+        return reader.readBlock(segment, local);
+    }
+
+    private int lastBlockLines() {
+        return lineCount - (blockCount - 1) * ScrollbackArchive.BLOCK_LINES;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Scrollback spill ends early");
+            }
+        }
+    }
+
+    /** Delete the oldest segment; its blocks are all full, being followed by another */
+    private void dropOldestSegment() {
+        Segment oldest = segments.removeFirst();
+        int lines = oldest.blockCount * ScrollbackArchive.BLOCK_LINES;
+        firstLineNumber += lines;
+        lineCount -= lines;
+        blockCount -= oldest.blockCount;
+        oldest.delete();
+        dropDecoded();
+    }
+
+    private void clear(long startLineNumber) {
+        for (Segment segment : segments) {
+            segment.delete();
+        }
+        segments.clear();
+        dropDecoded();
+        firstLineNumber = startLineNumber;
+        lineCount = 0;
+        blockCount = 0;
+    }
+
+    /** Drop what was spilled and ignore further blocks */
+    private void disable() {
+        disabled = true;
+        clear(endLineNumber());
+    }
+}
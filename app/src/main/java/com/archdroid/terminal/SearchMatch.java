@@ -0,0 +1,53 @@
+package com.archdroid.terminal;
+
+/**
+ * Position of a search hit in the history
+ * Lines are absolute line numbers as used by {@link TerminalEmulator#getLineAt},
+ * so a hit stays valid while the line scrolls further back. A hit in a
+ * soft-wrapped line may continue on the following lines up to its end position.
+ */
+public final class SearchMatch {
+
+    private final long lineNumber;
+    private final int column;
+    private final int length;
+    private final long endLineNumber;
+    private final int endColumn;
+
+    SearchMatch(long lineNumber, int column, int length, long endLineNumber, int endColumn) {
+        this.lineNumber = lineNumber;
+        this.column = column;
+        this.length = length;
+        this.endLineNumber = endLineNumber;
+        this.endColumn = endColumn;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /** First cell of the hit */
+    public int getColumn() {
+        return column;
+    }
+
+    /** Number of cells the hit spans, counted across wrapped lines */
+    public int getLength() {
+        return length;
+    }
+
+    /** Line holding the end of the hit */
+    public long getEndLineNumber() {
+        return endLineNumber;
+    }
+
+    /** Cell one past the end of the hit on the end line */
+    public int getEndColumn() {
+        return endColumn;
+    }
+
+    @Override
+    public String toString() {
+        return lineNumber + ":" + column + "+" + length;
+    }
+}
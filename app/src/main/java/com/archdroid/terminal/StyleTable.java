@@ -0,0 +1,226 @@
+package com.archdroid.terminal;
+
+import java.util.Arrays;
+
+/**
+ * Interned table of cell styles
+ * A style is the combination of foreground, background and attribute flags.
+ * Each distinct combination is stored once and cells only carry its small int
+ * ID, so per-cell storage stays at character plus ID and two cells share a
+ * style exactly when their IDs are equal. Archived scrollback stores styles by
+ * value, so only lines in memory hold IDs; once the table runs low, the owner
+ * marks the IDs those lines still use and every other ID is reused.
+ * Colors are stored in the {@link CellColor} encoding and resolved to ARGB
+ * against the table's palette when read.
+ */
+class StyleTable {
+
+    static final int BOLD = 1;
+    static final int UNDERLINE = 1 << 1;
+    static final int REVERSE = 1 << 2;
+    static final int ITALIC = 1 << 3;
+
+    /** ID of default colors without attributes */
+    static final int DEFAULT_STYLE = 0;
+
+    interface LiveStyles {
+        /** Pass every style ID still referenced to {@link #markLive} */
+        void markLiveStyles(StyleTable table);
+    }
+
+    // Beyond this many styles in use new combinations fall back to the default
+    private static final int MAX_STYLES = 1 << 16;
+    // Free IDs to keep for styles interned between two reclaims
+    private static final int RECLAIM_HEADROOM = MAX_STYLES / 4;
+
+    private volatile int[] foreground = new int[64];
+    private volatile int[] background = new int[64];
+    private volatile int[] attributes = new int[64];
+    private int count = 0;
+
+    // IDs no longer referenced, reused before the table grows
+    private int[] freeIds;
+    private int freeCount = 0;
+    // New styles asked for since the last reclaim, whether or not they got an ID
+    private int internedSinceReclaim = 0;
+    private long[] liveMarks;
+
+    // Open-addressed hash index holding ID + 1, 0 marks an empty slot
+    private int[] slots = new int[128];
+
+    // 256 color palette as ARGB, replaced as a whole when the theme changes
+    private volatile int[] palette = CellColor.XTERM_256.clone();
+    private volatile int defaultForeground = 0xFFFFFFFF;
+    private volatile int defaultBackground = 0xFF000000;
+
+    StyleTable() {
+        intern(CellColor.DEFAULT, CellColor.DEFAULT, 0);
+    }
+
+    /** Set the 16 ANSI colors; the rest of the 256 color palette is fixed */
+    void setAnsiColors(int[] colors) {
+        int[] updated = palette.clone();
+        System.arraycopy(colors, 0, updated, 0, Math.min(16, colors.length));
+        palette = updated;
+    }
+
+    /** Set the colors of cells that use the default foreground or background */
+    void setDefaultColors(int foregroundColor, int backgroundColor) {
+        defaultForeground = foregroundColor;
+        defaultBackground = backgroundColor;
+    }
+
+    /** Number of style IDs in use */
+    int size() {
+        return count - freeCount;
+    }
+
+    /** ID of the given style, adding it to the table if it is new */
+    int intern(int foregroundColor, int backgroundColor, int attributeFlags) {
+        int mask = slots.length - 1;
+        int slot = hash(foregroundColor, backgroundColor, attributeFlags) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (foreground[id] == foregroundColor && background[id] == backgroundColor
+                    && attributes[id] == attributeFlags) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+            // A freed ID is only left in rows that are no longer displayed
+            foreground[id] = foregroundColor;
+            background[id] = backgroundColor;
+            attributes[id] = attributeFlags;
+            slots[slot] = id + 1;
+            internedSinceReclaim++;
+            return id;
+        }
+        internedSinceReclaim++;
+        if (count == MAX_STYLES) {
+            return DEFAULT_STYLE;
+        }
+
+        id = count;
+        if (id == foreground.length) {
+            int capacity = id * 2;
+            // Publish grown arrays only after they are filled, readers may be
+            // resolving IDs on another thread
+            int[] grownBackground = Arrays.copyOf(background, capacity);
+            int[] grownAttributes = Arrays.copyOf(attributes, capacity);
+            int[] grownForeground = Arrays.copyOf(foreground, capacity);
+            grownForeground[id] = foregroundColor;
+            grownBackground[id] = backgroundColor;
+            grownAttributes[id] = attributeFlags;
+            background = grownBackground;
+            attributes = grownAttributes;
+            foreground = grownForeground;
+        } else {
+            foreground[id] = foregroundColor;
+            background[id] = backgroundColor;
+            attributes[id] = attributeFlags;
+        }
+        count++;
+        slots[slot] = id + 1;
+
+        if (count * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Whether few IDs are left and enough new styles were asked for since the
+     * last reclaim that another one may free some
+     */
+    boolean needsReclaim() {
+        int available = MAX_STYLES - count + freeCount;
+        return available < RECLAIM_HEADROOM && internedSinceReclaim >= RECLAIM_HEADROOM / 4;
+    }
+
+    /**
+     * Free every ID that {@code owner} does not mark as live. Must not run
+     * while a line is being built from interned IDs that nothing holds yet.
+     */
+    void reclaim(LiveStyles owner) {
+        long[] marks = new long[(count + 63) / 64];
+        liveMarks = marks;
+        markLive(DEFAULT_STYLE);
+        owner.markLiveStyles(this);
+        liveMarks = null;
+
+        if (freeIds == null) {
+            freeIds = new int[MAX_STYLES];
+        }
+        freeCount = 0;
+        Arrays.fill(slots, 0);
+        int mask = slots.length - 1;
+        for (int id = 0; id < count; id++) {
+            if ((marks[id >>> 6] & (1L << id)) == 0) {
+                freeIds[freeCount++] = id;
+                continue;
+            }
+            int slot = hash(foreground[id], background[id], attributes[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+        internedSinceReclaim = 0;
+    }
+
+    /** Called back from {@link LiveStyles#markLiveStyles} for each ID in use */
+    void markLive(int id) {
+        if (id >= 0 && id < count) {
+            liveMarks[id >>> 6] |= 1L << id;
+        }
+    }
+
+    /** Foreground of a style as ARGB */
+    int getForeground(int id) {
+        return CellColor.resolve(getForegroundCode(id), palette, defaultForeground);
+    }
+
+    /** Background of a style as ARGB */
+    int getBackground(int id) {
+        return CellColor.resolve(getBackgroundCode(id), palette, defaultBackground);
+    }
+
+    /** Foreground of a style in the {@link CellColor} encoding */
+    int getForegroundCode(int id) {
+        int[] values = foreground;
+        return id < values.length ? values[id] : CellColor.DEFAULT;
+    }
+
+    int getBackgroundCode(int id) {
+        int[] values = background;
+        return id < values.length ? values[id] : CellColor.DEFAULT;
+    }
+
+    int getAttributes(int id) {
+        int[] values = attributes;
+        return id < values.length ? values[id] : 0;
+    }
+
+    private void rehash() {
+        int[] grown = new int[slots.length * 2];
+        int mask = grown.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = hash(foreground[id], background[id], attributes[id]) & mask;
+            while (grown[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            grown[slot] = id + 1;
+        }
+        slots = grown;
+    }
+
+    private static int hash(int foregroundColor, int backgroundColor, int attributeFlags) {
+        int h = foregroundColor * 31 + backgroundColor;
+        h = h * 31 + attributeFlags;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,125 @@
+package com.archdroid.terminal;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds a fixed string in logical terminal lines, cell by cell
+ * The rows of a soft-wrapped line are appended one after another and matched
+ * as one sequence, so a hit may continue across the wrap. Lines are compared
+ * as code points with wide-character tails skipped, and hits are reported as
+ * cell positions so they map straight back to the screen.
+ */
+class SubstringMatcher {
+
+    private final int[] query;
+    private final boolean ignoreCase;
+    private final int[] trigramHashes;
+
+    // Per code point of the logical line: comparable value, row, and cells [column, endColumn)
+    private int[] codePoints = new int[256];
+    private int[] segmentOf = new int[256];
+    private int[] columns = new int[256];
+    private int[] endColumns = new int[256];
+    private int count = 0;
+
+    // Per row of the logical line: its absolute number and width in cells
+    private long[] lineNumbers = new long[8];
+    private int[] segmentWidths = new int[8];
+    private int segmentCount = 0;
+
+    SubstringMatcher(String text, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        query = new int[text.codePointCount(0, text.length())];
+        for (int i = 0, offset = 0; i < query.length; i++) {
+            int codePoint = text.codePointAt(offset);
+            query[i] = ignoreCase ? ScrollbackIndex.fold(codePoint) : codePoint;
+            offset += Character.charCount(codePoint);
+        }
+        int count = Math.max(0, query.length - 2);
+        trigramHashes = new int[count];
+        for (int i = 0; i < count; i++) {
+            trigramHashes[i] = ScrollbackIndex.hash(ScrollbackIndex.fold(query[i]),
+                ScrollbackIndex.fold(query[i + 1]), ScrollbackIndex.fold(query[i + 2]));
+        }
+    }
+
+    /** Whether an index block with the given bits may contain the query */
+    boolean mayMatch(long[] bits) {
+        return ScrollbackIndex.containsAll(bits, trigramHashes, trigramHashes.length);
+    }
+
+    /** Start a new logical line */
+    void clear() {
+        count = 0;
+        segmentCount = 0;
+    }
+
+    /** Append the cells of the next row of the logical line */
+    void append(long lineNumber, TerminalEmulator.TextLine line) {
+        if (segmentCount == lineNumbers.length) {
+            lineNumbers = Arrays.copyOf(lineNumbers, segmentCount * 2);
+            segmentWidths = Arrays.copyOf(segmentWidths, segmentCount * 2);
+        }
+        int segment = segmentCount++;
+        int size = line.size();
+        lineNumbers[segment] = lineNumber;
+        segmentWidths[segment] = size;
+
+        if (codePoints.length < count + size) {
+            int capacity = Math.max(count + size, codePoints.length * 2);
+            codePoints = Arrays.copyOf(codePoints, capacity);
+            segmentOf = Arrays.copyOf(segmentOf, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+            endColumns = Arrays.copyOf(endColumns, capacity);
+        }
+        for (int i = 0; i < size; i++) {
+            int codePoint = line.getCodePoint(i);
+            if (codePoint != TerminalEmulator.TextLine.WIDE_TAIL) {
+                codePoints[count] = ignoreCase ? ScrollbackIndex.fold(codePoint) : codePoint;
+                segmentOf[count] = segment;
+                columns[count] = i;
+                endColumns[count++] = line.isWide(i) ? i + 2 : i + 1;
+            }
+        }
+    }
+
+    /**
+     * Add the hits in the logical line to {@code out}, stopping once it holds
+     * {@code limit} entries. Returns false when the limit is reached.
+     */
+    boolean find(List<SearchMatch> out, int limit) {
+        if (query.length == 0) {
+            return out.size() < limit;
+        }
+        for (int start = 0; start + query.length <= count; start++) {
+            int matched = 0;
+            while (matched < query.length && codePoints[start + matched] == query[matched]) {
+                matched++;
+            }
+            if (matched == query.length) {
+                int end = start + matched;
+                out.add(toMatch(start, end));
+                if (out.size() >= limit) {
+                    return false;
+                }
+                // Hits do not overlap
+                start = end - 1;
+            }
+        }
+        return true;
+    }
+
+    private SearchMatch toMatch(int start, int end) {
+        int startSegment = segmentOf[start];
+        int endSegment = segmentOf[end - 1];
+        int startColumn = columns[start];
+        int endColumn = endColumns[end - 1];
+        int cells = endColumn - startColumn;
+        for (int segment = startSegment; segment < endSegment; segment++) {
+            cells += segmentWidths[segment];
+        }
+        return new SearchMatch(lineNumbers[startSegment], startColumn, cells,
+            lineNumbers[endSegment], endColumn);
+    }
+}
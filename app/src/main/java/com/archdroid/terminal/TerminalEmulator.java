@@ -1,12 +1,14 @@
 package com.archdroid.terminal;
 
-import android.graphics.Color;
-
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Terminal emulator that processes ANSI escape sequences
@@ -16,314 +18,946 @@ public class TerminalEmulator {
 
     private static final String TAG = "TerminalEmulator";
 
-    public static class Cell {
-        public char character;
-        public int foregroundColor;
-        public int backgroundColor;
-        public boolean bold;
-        public boolean underline;
-        public boolean reverse;
-        public boolean italic;
-
-        public Cell() {
-            this(' ', Color.WHITE, Color.BLACK, false, false, false, false);
+    /**
+     * A single row of the terminal. Cells are stored in parallel primitive arrays
+     * instead of one object per cell: the code point in {@code text} and the ID
+     * of its interned style in {@code style} (see {@link StyleTable}).
+     * A double-width character occupies its cell and a following
+     * {@link #WIDE_TAIL} cell. Characters with combining marks attached are
+     * kept in a small per-line cluster table and the cell holds the negative
+     * reference {@code CLUSTER_BASE - index}, so plain text never touches it.
+     */
+    public static class TextLine {
+        /** Right half of a double-width character */
+        public static final int WIDE_TAIL = -1;
+        private static final int CLUSTER_BASE = -2;
+        // Marks a serialized cell that is not ASCII; the raw int follows
+        private static final byte CELL_ESCAPE = (byte) 0x80;
+
+        private final StyleTable styles;
+        private int[] text;
+        private int[] style;
+        private int size;
+        // The line was soft-wrapped: its text continues on the next line
+        private boolean wrapped;
+        // Grapheme clusters referenced by cells, null until the first one
+        private String[] clusters;
+        private int clusterCount;
+
+        TextLine(StyleTable styles, int size) {
+            this.styles = styles;
+            text = new int[size];
+            style = new int[size];
+            this.size = size;
+            clear();
         }
 
-        public Cell(char character, int foregroundColor, int backgroundColor,
-                    boolean bold, boolean underline, boolean reverse, boolean italic) {
-            this.character = character;
-            this.foregroundColor = foregroundColor;
-            this.backgroundColor = backgroundColor;
-            this.bold = bold;
-            this.underline = underline;
-            this.reverse = reverse;
-            this.italic = italic;
+        /** Character of a cell, or U+FFFD when it does not fit a single char */
+        public char getChar(int index) {
+            int codePoint = getCodePoint(index);
+            if (codePoint == WIDE_TAIL) {
+                return ' ';
+            }
+            return codePoint <= 0xFFFF ? (char) codePoint : '\uFFFD';
         }
 
-        public void reset() {
-            this.character = ' ';
-            this.foregroundColor = Color.WHITE;
-            this.backgroundColor = Color.BLACK;
-            this.bold = false;
-            this.underline = false;
-            this.reverse = false;
-            this.italic = false;
+        /**
+         * Code point of a cell: the base character for clusters and
+         * {@link #WIDE_TAIL} for the right half of a double-width character
+         */
+        public int getCodePoint(int index) {
+            if (index < 0 || index >= size) {
+                return ' ';
+            }
+            int value = text[index];
+            if (value <= CLUSTER_BASE) {
+                return cluster(value).codePointAt(0);
+            }
+            return value;
         }
-    }
 
-    public static class TextLine {
-        private final List<Cell> cells;
+        private String cluster(int value) {
+            // The renderer reads without the lock and may race a compaction
+            String[] table = clusters;
+            int index = CLUSTER_BASE - value;
+            return table != null && index < table.length && table[index] != null
+                ? table[index] : "\uFFFD";
+        }
 
-        public TextLine() {
-            cells = new ArrayList<>();
+        /** The cell holds a character with combining marks */
+        boolean isCluster(int index) {
+            return index >= 0 && index < size && text[index] <= CLUSTER_BASE;
         }
 
-        public TextLine(int size) {
-            cells = new ArrayList<>(size);
-            for (int i = 0; i < size; i++) {
-                cells.add(new Cell());
-            }
+        public boolean isWide(int index) {
+            return index + 1 < size && text[index + 1] == WIDE_TAIL;
         }
 
-        public char getChar(int index) {
-            if (index >= 0 && index < cells.size()) {
-                return cells.get(index).character;
+        /** Full text of a cell including combining marks; empty for a wide tail */
+        public void appendCell(StringBuilder out, int index) {
+            if (index < 0 || index >= size) {
+                out.append(' ');
+                return;
+            }
+            int value = text[index];
+            if (value <= CLUSTER_BASE) {
+                out.append(cluster(value));
+            } else if (value != WIDE_TAIL) {
+                out.appendCodePoint(value);
             }
-            return ' ';
         }
 
         public int getForeColor(int index) {
-            if (index >= 0 && index < cells.size()) {
-                return cells.get(index).foregroundColor;
-            }
-            return Color.WHITE;
+            return styles.getForeground(getStyle(index));
         }
 
         public int getBackColor(int index) {
-            if (index >= 0 && index < cells.size()) {
-                return cells.get(index).backgroundColor;
-            }
-            return Color.BLACK;
+            return styles.getBackground(getStyle(index));
         }
 
         public boolean isBold(int index) {
-            if (index >= 0 && index < cells.size()) {
-                return cells.get(index).bold;
+            return hasAttribute(index, StyleTable.BOLD);
+        }
+
+        public boolean isUnderline(int index) {
+            return hasAttribute(index, StyleTable.UNDERLINE);
+        }
+
+        public boolean isReverse(int index) {
+            return hasAttribute(index, StyleTable.REVERSE);
+        }
+
+        public boolean isItalic(int index) {
+            return hasAttribute(index, StyleTable.ITALIC);
+        }
+
+        private boolean hasAttribute(int index, int attribute) {
+            return (styles.getAttributes(getStyle(index)) & attribute) != 0;
+        }
+
+        /**
+         * Interned style ID of a cell. Cells with equal IDs render identically,
+         * so style runs can be found with a single int comparison.
+         */
+        public int getStyle(int index) {
+            if (index >= 0 && index < size) {
+                return style[index];
             }
-            return false;
+            return StyleTable.DEFAULT_STYLE;
         }
 
         public void setChar(int index, char ch) {
             ensureCapacity(index);
-            cells.get(index).character = ch;
+            text[index] = ch;
         }
 
-        public void setCell(int index, Cell cell) {
+        public void setCell(int index, int codePoint, int styleId) {
             ensureCapacity(index);
-            cells.set(index, cell);
+            text[index] = codePoint;
+            style[index] = styleId;
+        }
+
+        /** Store a run of printable ASCII bytes in one style */
+        void setAscii(int index, byte[] data, int offset, int count, int styleId) {
+            ensureCapacity(index + count - 1);
+            for (int i = 0; i < count; i++) {
+                text[index + i] = data[offset + i];
+            }
+            Arrays.fill(style, index, index + count, styleId);
+        }
+
+        /** Store a run of printable ASCII characters in one style */
+        void setAscii(int index, String data, int offset, int count, int styleId) {
+            ensureCapacity(index + count - 1);
+            for (int i = 0; i < count; i++) {
+                text[index + i] = data.charAt(offset + i);
+            }
+            Arrays.fill(style, index, index + count, styleId);
+        }
+
+        /** Attach a combining mark to the character in a cell */
+        void combine(int index, int mark) {
+            if (index < 0 || index >= size || text[index] == WIDE_TAIL) {
+                return;
+            }
+            int value = text[index];
+            StringBuilder cluster = new StringBuilder();
+            appendCell(cluster, index);
+            cluster.appendCodePoint(mark);
+            if (value <= CLUSTER_BASE) {
+                clusters[CLUSTER_BASE - value] = cluster.toString();
+            } else {
+                text[index] = addCluster(cluster.toString());
+            }
+        }
+
+        private int addCluster(String cluster) {
+            if (clusters == null) {
+                clusters = new String[4];
+            } else if (clusterCount == clusters.length) {
+                compactClusters();
+                if (clusterCount == clusters.length) {
+                    clusters = Arrays.copyOf(clusters, clusterCount * 2);
+                }
+            }
+            clusters[clusterCount] = cluster;
+            return CLUSTER_BASE - clusterCount++;
+        }
+
+        /** Drop clusters no longer referenced by any cell */
+        private void compactClusters() {
+            String[] live = new String[clusters.length];
+            int liveCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (text[i] <= CLUSTER_BASE) {
+                    live[liveCount] = cluster(text[i]);
+                    text[i] = CLUSTER_BASE - liveCount++;
+                }
+            }
+            clusters = live;
+            clusterCount = liveCount;
         }
 
         public void ensureCapacity(int index) {
-            while (cells.size() <= index) {
-                cells.add(new Cell());
+            if (index < size) {
+                return;
+            }
+            if (index >= text.length) {
+                int capacity = Math.max(index + 1, text.length * 2);
+                text = Arrays.copyOf(text, capacity);
+                style = Arrays.copyOf(style, capacity);
             }
+            Arrays.fill(text, size, index + 1, ' ');
+            Arrays.fill(style, size, index + 1, StyleTable.DEFAULT_STYLE);
+            size = index + 1;
         }
 
         public int size() {
-            return cells.size();
+            return size;
+        }
+
+        public boolean isWrapped() {
+            return wrapped;
+        }
+
+        void setWrapped(boolean wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        /** Length without trailing blank cells in the default style */
+        int contentLength() {
+            int length = size;
+            while (length > 0 && text[length - 1] == ' '
+                    && style[length - 1] == StyleTable.DEFAULT_STYLE) {
+                length--;
+            }
+            return length;
+        }
+
+        /** Copy a run of cells from another line, growing this one as needed */
+        void copyCells(TextLine source, int sourceIndex, int index, int length) {
+            if (length <= 0) {
+                return;
+            }
+            ensureCapacity(index + length - 1);
+            System.arraycopy(source.text, sourceIndex, text, index, length);
+            System.arraycopy(source.style, sourceIndex, style, index, length);
+            if (source.clusterCount > 0) {
+                for (int i = index; i < index + length; i++) {
+                    if (text[i] <= CLUSTER_BASE) {
+                        text[i] = addCluster(source.cluster(text[i]));
+                    }
+                }
+            }
+        }
+
+        /** Mark the style IDs used by the line as live */
+        void markStyles(StyleTable table) {
+            int previous = -1;
+            for (int i = 0; i < size; i++) {
+                if (style[i] != previous) {
+                    previous = style[i];
+                    table.markLive(previous);
+                }
+            }
         }
 
         public void clear() {
-            for (Cell cell : cells) {
-                cell.reset();
+            Arrays.fill(text, 0, size, ' ');
+            Arrays.fill(style, 0, size, StyleTable.DEFAULT_STYLE);
+            clusterCount = 0;
+        }
+
+        /** Upper bound of the bytes {@link #writeTo} takes for this line */
+        int encodedSizeBound() {
+            // Header, then per cell an escaped int and a style run of its own
+            int bound = 5 + size * (5 + 14);
+            for (int i = 0; i < clusterCount; i++) {
+                bound += 2 + 3 * clusters[i].length();
             }
+            return bound;
         }
-    }
 
-    private volatile int width = 80;
-    private volatile int height = 24;
+        /**
+         * Serialize the line for the compressed scrollback archive into a heap
+         * buffer with at least {@link #encodedSizeBound()} bytes left. ASCII cells take
+         * one byte each and anything else an escape byte and the raw int. Styles
+         * are written as runs since neighbouring cells almost always share one,
+         * and by value, so archived lines hold no style IDs that could be
+         * reclaimed.
+         */
+        void writeTo(ByteBuffer out) {
+            out.putShort((short) size);
+            out.put((byte) (wrapped ? 1 : 0));
+            out.putShort((short) clusterCount);
+            for (int i = 0; i < clusterCount; i++) {
+                byte[] utf8 = clusters[i].getBytes(StandardCharsets.UTF_8);
+                out.putShort((short) utf8.length);
+                out.put(utf8);
+            }
+            // Cells go straight into the backing array, this loop is the hot part
+            int[] cells = text;
+            byte[] bytes = out.array();
+            int position = out.arrayOffset() + out.position();
+            for (int i = 0; i < size; i++) {
+                int value = cells[i];
+                if (value >= 0 && value < 0x80) {
+                    bytes[position++] = (byte) value;
+                } else {
+                    bytes[position++] = CELL_ESCAPE;
+                    bytes[position++] = (byte) (value >>> 24);
+                    bytes[position++] = (byte) (value >>> 16);
+                    bytes[position++] = (byte) (value >>> 8);
+                    bytes[position++] = (byte) value;
+                }
+            }
+            out.position(position - out.arrayOffset());
+            int[] ids = style;
+            int i = 0;
+            while (i < size) {
+                int id = ids[i];
+                int run = 1;
+                while (i + run < size && ids[i + run] == id) {
+                    run++;
+                }
+                out.putShort((short) run);
+                out.putInt(styles.getForegroundCode(id));
+                out.putInt(styles.getBackgroundCode(id));
+                out.putInt(styles.getAttributes(id));
+                i += run;
+            }
+        }
 
-    private final List<TextLine> screen;
-    private final List<TextLine> scrollbackBuffer;
-    private final int maxScrollbackLines = 1000;
+        /**
+         * Read a line written by {@link #writeTo}, advancing the buffer past it.
+         * Without a style table, as for searches, styles are skipped and every
+         * cell keeps the default style.
+         */
+        static TextLine readFrom(ByteBuffer in, StyleTable styles) {
+            int size = in.getShort() & 0xFFFF;
+            TextLine line = new TextLine(styles, size);
+            line.wrapped = in.get() != 0;
+            int clusterCount = in.getShort() & 0xFFFF;
+            if (clusterCount > 0) {
+                line.clusters = new String[clusterCount];
+                for (int i = 0; i < clusterCount; i++) {
+                    byte[] utf8 = new byte[in.getShort() & 0xFFFF];
+                    in.get(utf8);
+                    line.clusters[i] = new String(utf8, StandardCharsets.UTF_8);
+                }
+                line.clusterCount = clusterCount;
+            }
+            int[] cells = line.text;
+            for (int i = 0; i < size; i++) {
+                byte value = in.get();
+                cells[i] = value == CELL_ESCAPE ? in.getInt() : value;
+            }
+            int i = 0;
+            while (i < size) {
+                int run = in.getShort() & 0xFFFF;
+                if (styles != null) {
+                    int styleId = styles.intern(in.getInt(), in.getInt(), in.getInt());
+                    Arrays.fill(line.style, i, i + run, styleId);
+                } else {
+                    in.position(in.position() + 3 * Integer.BYTES);
+                }
+                i += run;
+            }
+            return line;
+        }
 
-    private volatile int cursorRow = 0;
-    private volatile int cursorCol = 0;
+        /** Independent copy, used for published snapshots */
+        TextLine copy() {
+            TextLine line = new TextLine(styles, 0);
+            line.text = Arrays.copyOf(text, size);
+            line.style = Arrays.copyOf(style, size);
+            line.size = size;
+            line.wrapped = wrapped;
+            if (clusterCount > 0) {
+                line.clusters = Arrays.copyOf(clusters, clusterCount);
+                line.clusterCount = clusterCount;
+            }
+            return line;
+        }
 
-    private int[] colorPalette;
-    private int defaultForeground = Color.WHITE;
-    private int defaultBackground = Color.BLACK;
+        /** Blank the line and set its length to exactly {@code width} cells */
+        void reset(int width) {
+            size = 0;
+            wrapped = false;
+            clusterCount = 0;
+            if (width > 0) {
+                ensureCapacity(width - 1);
+            }
+        }
+    }
 
-    private int currentForeground;
-    private int currentBackground;
+    private volatile int width = 80;
+    private volatile int height = 24;
+
+    public static final int DEFAULT_MAX_SCROLLBACK_LINES = 10000;
+
+    // Newest history lines kept uncompressed in the ring; older lines are
+    // frozen into the compressed archive
+    private static final int HOT_SCROLLBACK_LINES = 1000;
+
+    // Disk space the scrollback spill may take before it drops its oldest lines
+    private static final long DEFAULT_SPILL_BYTES = 64L << 20;
+
+    // Hot scrollback history followed by the screen rows; the screen is always
+    // the newest `height` lines of the ring
+    private final LineRing lines;
+
+    // Alternate screen used by full-screen programs: preallocated rows and no
+    // history. Switching screens swaps screenLines between the two rings.
+    private final LineRing alternateLines;
+    private LineRing screenLines;
+    private boolean alternateScreenActive = false;
+    private int savedPrimaryCursorRow = 0;
+    private int savedPrimaryCursorCol = 0;
+    private int savedPrimaryStyle = StyleTable.DEFAULT_STYLE;
+    private final ScrollbackArchive archive;
+    // Trigram filter over the archived lines; the bits of spilled blocks are
+    // stored with them on disk
+    private final ScrollbackIndex searchIndex = new ScrollbackIndex();
+    private final long[] evictedBits = new long[ScrollbackIndex.BLOCK_WORDS];
+    // Optional disk tier below the archive, see enableScrollbackSpill
+    private ScrollbackSpill spill;
+    private int maxScrollbackLines;
+
+    // History older than the last width change, rewrapped lazily as it is
+    // scrolled into view; null when all history is at the current width
+    private HistoryReflow historyReflow;
+
+    // Number of history lines the viewport is scrolled back by
+    private int scrollOffset = 0;
+
+    // Guarded by lock; published to other threads through publishedCursor
+    private int cursorRow = 0;
+    private int cursorCol = 0;
+    private volatile long publishedCursor = 0;
+
+    // Changes since the renderer last called fetchDamage, guarded by lock
+    private final ScreenDamage damage = new ScreenDamage();
+    private int damageCursorRow = 0;
+    private int damageCursorCol = 0;
+
+    // Changes since the last published snapshot, and the snapshot itself. It is
+    // rebuilt lazily by getSnapshot, so a frame's worth of output copies rows once
+    private final ScreenDamage snapshotDamage = new ScreenDamage();
+    private volatile ScreenSnapshot snapshot;
+    private volatile boolean snapshotStale = true;
+
+    private boolean cursorVisible = true;
+
+    // Current SGR colors in the CellColor encoding
+    private int currentForeground = CellColor.DEFAULT;
+    private int currentBackground = CellColor.DEFAULT;
     private boolean currentBold = false;
     private boolean currentUnderline = false;
     private boolean currentReverse = false;
     private boolean currentItalic = false;
+    private final StyleTable styles = new StyleTable();
+    private int currentStyle = StyleTable.DEFAULT_STYLE;
+
+    // Scrolling region (DECSTBM), inclusive screen rows
+    private int scrollTop = 0;
+    private int scrollBottom = 23;
 
     private int savedCursorRow = 0;
     private int savedCursorCol = 0;
 
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // All screen state is guarded by this lock. The session's output reader is
+    // the only thread that feeds output, and it applies each chunk in a single
+    // critical section; the UI thread only takes the lock briefly for resize,
+    // scrolling and reading rows.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // The output stream runs over a pipe rather than a tty, so there is no
+    // onlcr translation and a bare LF must also return the carriage
+    private boolean newLineMode = true;
 
-    private static final Pattern ANSI_PATTERN = Pattern.compile(
-        "\u001B\\[([\\d;]*)([a-zA-Z])"
-    );
+    private final TerminalParser parser = new TerminalParser(new ParserHandler());
+    private final Utf8Decoder decoder = new Utf8Decoder();
+    private volatile String title = "";
 
     public TerminalEmulator(int initialWidth, int initialHeight) {
-        screen = new ArrayList<>();
-        scrollbackBuffer = new ArrayList<>();
-        colorPalette = new int[16];
+        this(initialWidth, initialHeight, DEFAULT_MAX_SCROLLBACK_LINES);
+    }
+
+    public TerminalEmulator(int initialWidth, int initialHeight, int maxScrollbackLines) {
+        this.maxScrollbackLines = Math.max(0, maxScrollbackLines);
+        archive = new ScrollbackArchive(this.maxScrollbackLines - hotScrollbackLines(), styles);
+        archive.setEvictionListener(this::evictBlock);
+        lines = new LineRing(initialHeight + hotScrollbackLines(), styles, this::commitLine);
+        alternateLines = new LineRing(initialHeight, styles);
+        screenLines = lines;
 
         setDefaultColorPalette();
         resize(initialWidth, initialHeight);
     }
 
+    /** A line leaves the ring for the archive, and becomes searchable through the index */
+    private void commitLine(long lineNumber, TextLine line) {
+        archive.append(lineNumber, line);
+        long first = getFirstLineNumber();
+        if (lineNumber >= first) {
+            searchIndex.add(lineNumber, line);
+        }
+        searchIndex.trim(first);
+    }
+
+    /**
+     * The archive drops its oldest block. Its index bits go to disk with it if
+     * there is a spill, and are forgotten otherwise.
+     */
+    private void evictBlock(long firstLineNumber, int lineCount, byte[] compressed,
+                            int rawLength) {
+        long end = firstLineNumber + lineCount;
+        if (spill != null) {
+            Arrays.fill(evictedBits, 0);
+            if (!searchIndex.collectBits(firstLineNumber, end, evictedBits)) {
+                // Nothing indexed: never let searches skip the block
+                Arrays.fill(evictedBits, -1L);
+            }
+            spill.append(firstLineNumber, lineCount, compressed, rawLength, evictedBits);
+            // The spill drops its oldest segment at the limit, and everything on errors
+            scrollOffset = Math.min(scrollOffset, getScrollbackSize());
+        }
+        searchIndex.trim(end);
+    }
+
+    private int hotScrollbackLines() {
+        return Math.min(HOT_SCROLLBACK_LINES, maxScrollbackLines);
+    }
+
+    /**
+     * Set how many lines of history are kept. Only the newest lines stay
+     * uncompressed; the rest is archived in compressed blocks.
+     */
+    public void setMaxScrollbackLines(int maxLines) {
+        lock.lock();
+        try {
+            maxScrollbackLines = Math.max(0, maxLines);
+            lines.setCapacity(height + hotScrollbackLines());
+            archive.setCapacity(maxScrollbackLines - hotScrollbackLines());
+            searchIndex.trim(getFirstLineNumber());
+            scrollOffset = Math.min(scrollOffset, getScrollbackSize());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxScrollbackLines() {
+        return maxScrollbackLines;
+    }
+
+    /**
+     * Spill history that ages out of the compressed archive to a file in the
+     * given directory instead of discarding it. The history then grows on
+     * disk only and stays readable through {@link #getLineAt}.
+     */
+    public void enableScrollbackSpill(File directory) throws IOException {
+        enableScrollbackSpill(directory, DEFAULT_SPILL_BYTES);
+    }
+
+    /**
+     * Spill history to the given directory, using at most {@code maxBytes} of
+     * disk. At the limit the oldest spilled lines are discarded to make room;
+     * if the disk fails, the spilled history is dropped and older lines are
+     * discarded as without a spill.
+     */
+    public void enableScrollbackSpill(File directory, long maxBytes) throws IOException {
+        lock.lock();
+        try {
+            if (spill != null) {
+                return;
+            }
+            spill = new ScrollbackSpill(directory, styles, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop spilling and delete the spill file, dropping the history it held */
+    public void releaseScrollbackSpill() {
+        lock.lock();
+        try {
+            if (spill != null) {
+                spill.release();
+                spill = null;
+                scrollOffset = Math.min(scrollOffset, getScrollbackSize());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void setDefaultColorPalette() {
         // Standard 16-color palette (Dracula theme inspired)
-        colorPalette[0] = Color.parseColor("#000000");  // Black
-        colorPalette[1] = Color.parseColor("#FF5555");  // Red
-        colorPalette[2] = Color.parseColor("#50FA7B");  // Green
-        colorPalette[3] = Color.parseColor("#F1FA8C");  // Yellow
-        colorPalette[4] = Color.parseColor("#BD93F9");  // Blue
-        colorPalette[5] = Color.parseColor("#FF79C6");  // Magenta
-        colorPalette[6] = Color.parseColor("#8BE9FD");  // Cyan
-        colorPalette[7] = Color.parseColor("#F8F8F2");  // White
-        colorPalette[8] = Color.parseColor("#6272A4");  // Bright Black (Gray)
-        colorPalette[9] = Color.parseColor("#FF6E6E");  // Bright Red
-        colorPalette[10] = Color.parseColor("#69FF94"); // Bright Green
-        colorPalette[11] = Color.parseColor("#FFFFA5"); // Bright Yellow
-        colorPalette[12] = Color.parseColor("#D6ACFF"); // Bright Blue
-        colorPalette[13] = Color.parseColor("#FF92DF"); // Bright Magenta
-        colorPalette[14] = Color.parseColor("#A4FFFF"); // Bright Cyan
-        colorPalette[15] = Color.parseColor("#FFFFFF"); // Bright White
-
-        currentForeground = defaultForeground;
-        currentBackground = defaultBackground;
+        styles.setAnsiColors(new int[]{
+            0xFF000000, // Black
+            0xFFFF5555, // Red
+            0xFF50FA7B, // Green
+            0xFFF1FA8C, // Yellow
+            0xFFBD93F9, // Blue
+            0xFFFF79C6, // Magenta
+            0xFF8BE9FD, // Cyan
+            0xFFF8F8F2, // White
+            0xFF6272A4, // Bright Black (Gray)
+            0xFFFF6E6E, // Bright Red
+            0xFF69FF94, // Bright Green
+            0xFFFFFFA5, // Bright Yellow
+            0xFFD6ACFF, // Bright Blue
+            0xFFFF92DF, // Bright Magenta
+            0xFFA4FFFF, // Bright Cyan
+            0xFFFFFFFF  // Bright White
+        });
     }
 
+    /**
+     * Replace the 16 ANSI colors. Cells refer to palette entries by index, so
+     * text already on screen takes the new colors too.
+     */
     public void setColorPalette(int... colors) {
         if (colors != null && colors.length >= 16) {
-            for (int i = 0; i < 16 && i < colors.length; i++) {
-                colorPalette[i] = colors[i];
+            lock.lock();
+            try {
+                styles.setAnsiColors(colors);
+                markAll();
+                publishState();
+            } finally {
+                lock.unlock();
             }
         }
     }
 
+    /** Set the ARGB colors of cells that use the default foreground or background */
+    public void setDefaultColors(int foregroundColor, int backgroundColor) {
+        lock.lock();
+        try {
+            styles.setDefaultColors(foregroundColor, backgroundColor);
+            markAll();
+            publishState();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void resize(int newWidth, int newHeight) {
-        lock.writeLock().lock();
+        lock.lock();
         try {
+            int oldWidth = width;
             width = Math.max(1, newWidth);
-            height = Math.max(1, newHeight);
+            int oldHeight = lines.size() == 0 ? 0 : height;
+            int newScreenHeight = Math.max(1, newHeight);
+
+            if (width != oldWidth && oldHeight > 0) {
+                // Only the primary screen holds wrapped text worth keeping;
+                // full-screen programs repaint the alternate screen themselves
+                if (alternateScreenActive) {
+                    long cursor = reflowPrimary(oldHeight, savedPrimaryCursorRow,
+                        savedPrimaryCursorCol);
+                    savedPrimaryCursorRow = (int) (cursor >> 32);
+                    savedPrimaryCursorCol = (int) cursor;
+                } else {
+                    long cursor = reflowPrimary(oldHeight, cursorRow, cursorCol);
+                    cursorRow = (int) (cursor >> 32);
+                    cursorCol = (int) cursor;
+                }
+            }
 
-            // Adjust screen size
-            while (screen.size() < height) {
-                screen.add(new TextLine(width));
+            if (alternateScreenActive) {
+                cursorRow = resizeScreen(alternateLines, 0, oldHeight, newScreenHeight, cursorRow);
+                savedPrimaryCursorRow = resizeScreen(lines, hotScrollbackLines(),
+                    oldHeight, newScreenHeight, savedPrimaryCursorRow);
+            } else {
+                cursorRow = resizeScreen(lines, hotScrollbackLines(),
+                    oldHeight, newScreenHeight, cursorRow);
+                resizeScreen(alternateLines, 0, oldHeight, newScreenHeight, 0);
             }
+            height = newScreenHeight;
 
-            // Trim or expand existing lines
-            for (TextLine line : screen) {
+            // Expand existing lines
+            for (int row = 0; row < height; row++) {
+                TextLine line = screenLine(row);
                 if (line.size() < width) {
                     line.ensureCapacity(width - 1);
                 }
             }
+            scrollOffset = Math.min(scrollOffset, getScrollbackSize());
+            damage.setRowCount(height);
+            snapshotDamage.setRowCount(height);
+            markAll();
+            scrollTop = 0;
+            scrollBottom = height - 1;
 
             // Adjust cursor position
             cursorRow = Math.min(cursorRow, height - 1);
             cursorCol = Math.min(cursorCol, width - 1);
+            publishState();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrap the primary ring to the current width, keeping the screen height.
+     * The ring is bounded by the hot history, so the work does not depend on
+     * how much scrollback there is; older history is left to historyReflow.
+     * Returns the new cursor position as (row << 32 | column).
+     */
+    private long reflowPrimary(int screenHeight, int row, int col) {
+        int count = lines.size();
+        long first = lines.firstLineNumber();
+        TextLine[] source = new TextLine[count];
+        for (int i = 0; i < count; i++) {
+            source[i] = lines.get(first + i);
+        }
+
+        // Blank rows below the cursor are recreated by padding afterwards
+        int cursorLine = count - screenHeight + row;
+        int end = count;
+        while (end - 1 > cursorLine && source[end - 1].contentLength() == 0
+                && !source[end - 1].isWrapped() && !source[end - 2].isWrapped()) {
+            end--;
+        }
+
+        List<TextLine> rows = new ArrayList<>(end + screenHeight);
+        long cursor = LineReflow.rewrap(source, end, width, styles, rows, cursorLine, col);
+        while (rows.size() < screenHeight) {
+            rows.add(new TextLine(styles, width));
+        }
+        int screenTop = rows.size() - screenHeight;
+        int newRow = Math.max(0, (int) (cursor >> 32) - screenTop);
+        int newCol = Math.min((int) cursor, width - 1);
+
+        historyReflow = getFirstLineNumber() < first
+            ? new HistoryReflow(width, first, styles, this::historyLine) : null;
+        lines.replaceAll(rows);
+        return ((long) newRow << 32) | newCol;
+    }
 
+    /**
+     * Grow or shrink the screen part of a ring and return the adjusted cursor row
+     */
+    private int resizeScreen(LineRing ring, int historyLines, int oldHeight, int newHeight,
+                             int cursor) {
+        if (newHeight > oldHeight) {
+            ring.setCapacity(newHeight + historyLines);
+            // Grow the screen with blank rows at the bottom
+            for (int i = oldHeight; i < newHeight; i++) {
+                ring.append(width);
+            }
+        } else if (newHeight < oldHeight) {
+            // Drop rows below the cursor first; anything left over scrolls
+            // off the top into history
+            int shrink = oldHeight - newHeight;
+            int belowCursor = Math.max(0, Math.min(shrink, oldHeight - 1 - cursor));
+            for (int i = 0; i < belowCursor; i++) {
+                ring.removeLast();
+            }
+            cursor -= shrink - belowCursor;
+            ring.setCapacity(newHeight + historyLines);
+        }
+        return Math.max(0, cursor);
+    }
+
+    /**
+     * Process raw UTF-8 output from the process. Characters split across calls
+     * are carried over, so the reader can pass its read buffer as is.
+     */
+    public void write(byte[] data, int offset, int length) {
+        lock.lock();
+        try {
+            int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                if (parser.isGround() && decoder.isIdle()) {
+                    int run = i;
+                    while (run < end && data[run] >= 0x20 && data[run] < 0x7F) {
+                        run++;
+                    }
+                    if (run > i) {
+                        printAsciiRun(data, null, i, run);
+                        i = run;
+                        continue;
+                    }
+                }
+                decoder.decode(data, i, 1, parser);
+                i++;
+            }
+            publishState();
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
+    /**
+     * Apply a chunk of output. The whole chunk is processed under one lock
+     * acquisition, so the cost of synchronization scales with the number of
+     * reads from the process rather than with the number of characters.
+     */
     public void write(String data) {
-        lock.readLock().lock();
+        lock.lock();
         try {
-            int i = 0;
-            while (i < data.length()) {
+            int length = data.length();
+            for (int i = 0; i < length; i++) {
                 char ch = data.charAt(i);
-
-                if (ch == '\u001B' && i + 1 < data.length() && data.charAt(i + 1) == '[') {
-                    // ANSI escape sequence
-                    i = processEscapeSequence(data, i + 2);
+                if (ch >= 0x20 && ch < 0x7F && parser.isGround()) {
+                    int run = i + 1;
+                    while (run < length && data.charAt(run) >= 0x20 && data.charAt(run) < 0x7F) {
+                        run++;
+                    }
+                    printAsciiRun(null, data, i, run);
+                    i = run - 1;
+                    continue;
+                }
+                if (Character.isHighSurrogate(ch) && i + 1 < length
+                        && Character.isLowSurrogate(data.charAt(i + 1))) {
+                    parser.feed(Character.toCodePoint(ch, data.charAt(++i)));
                 } else {
-                    // Regular character
-                    processCharacter(ch);
-                    i++;
+                    parser.feed(ch);
                 }
             }
+            publishState();
         } finally {
-            lock.readLock().unlock();
+            lock.unlock();
         }
     }
 
-    private int processEscapeSequence(String data, int startIndex) {
-        int i = startIndex;
-        List<Integer> params = new ArrayList<>();
-        int currentParam = 0;
-        boolean hasDigits = false;
+    private void setPrivateModes(int[] params, int paramCount, boolean enable) {
+        for (int i = 0; i < paramCount; i++) {
+            switch (params[i]) {
+                case 1049: // Alternate screen with saved cursor
+                    if (enable) {
+                        savedPrimaryCursorRow = cursorRow;
+                        savedPrimaryCursorCol = cursorCol;
+                        savedPrimaryStyle = currentStyle;
+                        switchScreen(true, true);
+                    } else if (alternateScreenActive) {
+                        switchScreen(false, false);
+                        cursorRow = Math.min(savedPrimaryCursorRow, height - 1);
+                        cursorCol = Math.min(savedPrimaryCursorCol, width - 1);
+                        currentStyle = savedPrimaryStyle;
+                    }
+                    break;
+
+                case 25: // DECTCEM - cursor visibility
+                    cursorVisible = enable;
+                    break;
 
-        // Parse parameters
-        while (i < data.length()) {
-            char ch = data.charAt(i);
-            if (Character.isDigit(ch)) {
-                currentParam = currentParam * 10 + (ch - '0');
-                hasDigits = true;
-            } else if (ch == ';') {
-                if (hasDigits) {
-                    params.add(currentParam);
-                }
-                currentParam = 0;
-                hasDigits = false;
-            } else {
-                break;
+                case 47: // Alternate screen
+                case 1047: // Alternate screen, cleared when entered
+                    switchScreen(enable, params[i] == 1047);
+                    break;
+
+                default:
+                    break;
             }
-            i++;
         }
+    }
 
-        if (hasDigits) {
-            params.add(currentParam);
+    /**
+     * Swap between the primary and alternate screen. Only the ring reference
+     * changes; no rows are copied.
+     */
+    private void switchScreen(boolean alternate, boolean clear) {
+        if (alternate == alternateScreenActive) {
+            return;
         }
+        alternateScreenActive = alternate;
+        screenLines = alternate ? alternateLines : lines;
+        if (alternate && clear) {
+            for (int row = 0; row < height; row++) {
+                screenLine(row).reset(width);
+            }
+        }
+        scrollOffset = 0;
+        markAll();
+    }
 
-        // Get command character
-        char command = i < data.length() ? data.charAt(i) : 'm';
-        i++;
-
-        // Execute command
-        executeCommand(command, params);
+    /** Parameter at index, or the default when it was omitted */
+    private static int param(int[] params, int count, int index, int defaultValue) {
+        if (index < count && params[index] >= 0) {
+            return params[index];
+        }
+        return defaultValue;
+    }
 
-        return i;
+    /** Count parameter for cursor motion, where 0 also means 1 */
+    private static int count(int[] params, int count, int index) {
+        return Math.max(1, param(params, count, index, 1));
     }
 
-    private void executeCommand(char command, List<Integer> params) {
-        // Helper method to get parameter with default value
-        java.util.function.BiFunction<Integer, Integer, Integer> getParam = (index, defaultVal) -> {
-            if (index < params.size()) {
-                return params.get(index);
-            }
-            return defaultVal;
-        };
+    private void executeCommand(int command, int[] params, int paramCount, int subParameters,
+                                int privateMarker) {
+        if (privateMarker == '?' && (command == 'h' || command == 'l')) {
+            setPrivateModes(params, paramCount, command == 'h');
+            return;
+        }
+        if (privateMarker != 0) {
+            return;
+        }
 
         switch (command) {
             case 'A': // Cursor up
-                cursorRow = Math.max(0, cursorRow - getParam.apply(0, 1));
+                cursorRow = Math.max(0, cursorRow - count(params, paramCount, 0));
                 break;
 
             case 'B': // Cursor down
-                cursorRow = Math.min(height - 1, cursorRow + getParam.apply(0, 1));
+                cursorRow = Math.min(height - 1, cursorRow + count(params, paramCount, 0));
                 break;
 
             case 'C': // Cursor forward (right)
-                cursorCol = Math.min(width - 1, cursorCol + getParam.apply(0, 1));
+                cursorCol = Math.min(width - 1, cursorCol + count(params, paramCount, 0));
                 break;
 
             case 'D': // Cursor backward (left)
-                cursorCol = Math.max(0, cursorCol - getParam.apply(0, 1));
+                cursorCol = Math.max(0, cursorCol - count(params, paramCount, 0));
                 break;
 
             case 'E': // Cursor to beginning of line, N lines down
-                cursorRow = Math.min(height - 1, cursorRow + getParam.apply(0, 1));
+                cursorRow = Math.min(height - 1, cursorRow + count(params, paramCount, 0));
                 cursorCol = 0;
                 break;
 
             case 'F': // Cursor to beginning of line, N lines up
-                cursorRow = Math.max(0, cursorRow - getParam.apply(0, 1));
+                cursorRow = Math.max(0, cursorRow - count(params, paramCount, 0));
                 cursorCol = 0;
                 break;
 
             case 'G': // Cursor horizontal absolute
-                cursorCol = Math.max(0, Math.min(width - 1, getParam.apply(0, 1) - 1));
+                cursorCol = Math.max(0, Math.min(width - 1, param(params, paramCount, 0, 1) - 1));
                 break;
 
             case 'H': // Cursor position
             case 'f':
-                cursorRow = Math.max(0, Math.min(height - 1, getParam.apply(0, 1) - 1));
-                cursorCol = Math.max(0, Math.min(width - 1, getParam.apply(1, 1) - 1));
+                cursorRow = Math.max(0, Math.min(height - 1, param(params, paramCount, 0, 1) - 1));
+                cursorCol = Math.max(0, Math.min(width - 1, param(params, paramCount, 1, 1) - 1));
                 break;
 
             case 'J': // Erase display
-                int param = getParam.apply(0, 0);
+                int param = param(params, paramCount, 0, 0);
                 if (param == 0) {
                     clearToEndOfScreen();
                 } else if (param == 1) {
@@ -334,7 +968,7 @@ public class TerminalEmulator {
                 break;
 
             case 'K': // Erase in line
-                param = getParam.apply(0, 0);
+                param = param(params, paramCount, 0, 0);
                 if (param == 0) {
                     clearToEndOfLine();
                 } else if (param == 1) {
@@ -345,11 +979,12 @@ public class TerminalEmulator {
                 break;
 
             case 'm': // SGR - graphics rendition
-                if (params.isEmpty()) {
+                if (paramCount == 0) {
                     resetAttributes();
                 } else {
-                    processSgrParameters(params);
+                    processSgrParameters(params, paramCount, subParameters);
                 }
+                updateCurrentStyle();
                 break;
 
             case 's': // Save cursor position
@@ -365,10 +1000,37 @@ public class TerminalEmulator {
             case 'n': // Device status report (ignore)
                 break;
 
-            case 'l': // Insert line (ignore in this implementation)
+            case 'L': // Insert lines
+                if (cursorRow >= scrollTop && cursorRow <= scrollBottom) {
+                    scrollRegionDown(cursorRow, scrollBottom, count(params, paramCount, 0));
+                    cursorCol = 0;
+                }
                 break;
 
-            case 'M': // Delete line (ignore in this implementation)
+            case 'M': // Delete lines
+                if (cursorRow >= scrollTop && cursorRow <= scrollBottom) {
+                    scrollRegionUp(cursorRow, scrollBottom, count(params, paramCount, 0), false);
+                    cursorCol = 0;
+                }
+                break;
+
+            case 'S': // Scroll up; like xterm, a full-screen scroll saves lines to history
+                scrollRegionUp(scrollTop, scrollBottom, count(params, paramCount, 0), true);
+                break;
+
+            case 'T': // Scroll down
+                scrollRegionDown(scrollTop, scrollBottom, count(params, paramCount, 0));
+                break;
+
+            case 'r': // Set scrolling region (DECSTBM)
+                int top = param(params, paramCount, 0, 1) - 1;
+                int bottom = Math.min(height, param(params, paramCount, 1, height)) - 1;
+                if (top >= 0 && top < bottom) {
+                    scrollTop = top;
+                    scrollBottom = bottom;
+                    cursorRow = 0;
+                    cursorCol = 0;
+                }
                 break;
 
             default:
@@ -377,399 +1039,632 @@ public class TerminalEmulator {
         }
     }
 
-    private void processSgrParameters(List<Integer> params) {
-        for (int i = 0; i < params.size(); i++) {
-            int param = params.get(i);
+    private void processSgrParameters(int[] params, int paramCount, int subParameters) {
+        for (int i = 0; i < paramCount; i++) {
+            int param = Math.max(0, params[i]);
+            // Sub-parameters (after ':') that belong to this parameter
+            int groupEnd = i + 1;
+            while (groupEnd < paramCount && (subParameters & (1 << groupEnd)) != 0) {
+                groupEnd++;
+            }
 
-            switch (param) {
-                case 0:
-                    resetAttributes();
-                    break;
-                case 1:
-                    currentBold = true;
-                    break;
-                case 3:
-                    currentItalic = true;
-                    break;
-                case 4:
-                    currentUnderline = true;
-                    break;
-                case 7:
-                    currentReverse = true;
-                    break;
-                case 22:
-                    currentBold = false;
-                    break;
-                case 23:
-                    currentItalic = false;
-                    break;
-                case 24:
-                    currentUnderline = false;
-                    break;
-                case 27:
-                    currentReverse = false;
-                    break;
+            if (param >= 30 && param <= 37) {
+                currentForeground = CellColor.indexed(param - 30);
+            } else if (param >= 90 && param <= 97) {
+                currentForeground = CellColor.indexed(param - 90 + 8);
+            } else if (param >= 40 && param <= 47) {
+                currentBackground = CellColor.indexed(param - 40);
+            } else if (param >= 100 && param <= 107) {
+                currentBackground = CellColor.indexed(param - 100 + 8);
+            } else {
+                switch (param) {
+                    case 0:
+                        resetAttributes();
+                        break;
+                    case 1:
+                        currentBold = true;
+                        break;
+                    case 3:
+                        currentItalic = true;
+                        break;
+                    case 4:
+                        // 4:0 turns underlining off; other styles are drawn as
+                        // a plain underline
+                        currentUnderline = groupEnd == i + 1 || params[i + 1] != 0;
+                        break;
+                    case 7:
+                        currentReverse = true;
+                        break;
+                    case 22:
+                        currentBold = false;
+                        break;
+                    case 23:
+                        currentItalic = false;
+                        break;
+                    case 24:
+                        currentUnderline = false;
+                        break;
+                    case 27:
+                        currentReverse = false;
+                        break;
+
+                    // Extended colors: 38;5;n and 38;2;r;g;b, or the colon forms
+                    case 38:
+                    case 48: {
+                        int color;
+                        if (groupEnd > i + 1) {
+                            color = extendedColor(params, i + 1, groupEnd, true);
+                        } else {
+                            groupEnd = extendedColorEnd(params, i + 1, paramCount);
+                            color = extendedColor(params, i + 1, groupEnd, false);
+                        }
+                        if (color != -1) {
+                            if (param == 38) {
+                                currentForeground = color;
+                            } else {
+                                currentBackground = color;
+                            }
+                        }
+                        break;
+                    }
 
-                // Foreground colors (30-37, 90-97)
-                case 30:
-                    currentForeground = colorPalette[0];
-                    break;
-                case 31:
-                    currentForeground = colorPalette[1];
-                    break;
-                case 32:
-                    currentForeground = colorPalette[2];
-                    break;
-                case 33:
-                    currentForeground = colorPalette[3];
-                    break;
-                case 34:
-                    currentForeground = colorPalette[4];
-                    break;
-                case 35:
-                    currentForeground = colorPalette[5];
-                    break;
-                case 36:
-                    currentForeground = colorPalette[6];
-                    break;
-                case 37:
-                    currentForeground = colorPalette[7];
-                    break;
+                    case 39:
+                        currentForeground = CellColor.DEFAULT;
+                        break;
+                    case 49:
+                        currentBackground = CellColor.DEFAULT;
+                        break;
 
-                // 256 color foreground (38;5;n)
-                case 38:
-                    if (i + 2 < params.size() && params.get(i + 1) == 5) {
-                        currentForeground = get256Color(params.get(i + 2));
-                        i += 2;
-                    }
-                    break;
+                    default:
+                        // Unknown parameter, ignore
+                        break;
+                }
+            }
+            i = groupEnd - 1;
+        }
+    }
 
-                case 39:
-                    currentForeground = defaultForeground;
-                    break;
+    /** End of the semicolon separated arguments of 38/48 starting at {@code from} */
+    private static int extendedColorEnd(int[] params, int from, int paramCount) {
+        if (from >= paramCount) {
+            return from;
+        }
+        int arguments = params[from] == 5 ? 2 : params[from] == 2 ? 4 : 1;
+        return Math.min(paramCount, from + arguments);
+    }
 
-                // Background colors (40-47, 100-107)
-                case 40:
-                    currentBackground = colorPalette[0];
-                    break;
-                case 41:
-                    currentBackground = colorPalette[1];
-                    break;
-                case 42:
-                    currentBackground = colorPalette[2];
-                    break;
-                case 43:
-                    currentBackground = colorPalette[3];
-                    break;
-                case 44:
-                    currentBackground = colorPalette[4];
-                    break;
-                case 45:
-                    currentBackground = colorPalette[5];
-                    break;
-                case 46:
-                    currentBackground = colorPalette[6];
-                    break;
-                case 47:
-                    currentBackground = colorPalette[7];
-                    break;
+    /**
+     * Color from the arguments {@code params[from, to)} of SGR 38/48, or -1 if
+     * they are malformed. The colon form of direct color may carry a color
+     * space ID before the components (38:2:id:r:g:b), which is skipped.
+     */
+    private static int extendedColor(int[] params, int from, int to, boolean colonForm) {
+        int count = to - from;
+        if (count >= 2 && params[from] == 5) {
+            return CellColor.indexed(Math.max(0, params[from + 1]));
+        }
+        if (count >= 4 && params[from] == 2) {
+            int red = colonForm && count >= 5 ? from + 2 : from + 1;
+            return CellColor.rgb(Math.max(0, params[red]), Math.max(0, params[red + 1]),
+                Math.max(0, params[red + 2]));
+        }
+        return -1;
+    }
 
-                // 256 color background (48;5;n)
-                case 48:
-                    if (i + 2 < params.size() && params.get(i + 1) == 5) {
-                        currentBackground = get256Color(params.get(i + 2));
-                        i += 2;
-                    }
-                    break;
+    private void resetAttributes() {
+        currentForeground = CellColor.DEFAULT;
+        currentBackground = CellColor.DEFAULT;
+        currentBold = false;
+        currentUnderline = false;
+        currentReverse = false;
+        currentItalic = false;
+    }
 
-                case 49:
-                    currentBackground = defaultBackground;
-                    break;
+    private void executeControl(int control) {
+        switch (control) {
+            case '\n':
+            case 0x0B: // Vertical tab
+            case 0x0C: // Form feed
+                if (newLineMode) {
+                    cursorCol = 0;
+                }
+                lineFeed();
+                break;
 
-                // Bright foreground colors (90-97)
-                case 90:
-                    currentForeground = colorPalette[8];
-                    break;
-                case 91:
-                    currentForeground = colorPalette[9];
-                    break;
-                case 92:
-                    currentForeground = colorPalette[10];
-                    break;
-                case 93:
-                    currentForeground = colorPalette[11];
-                    break;
-                case 94:
-                    currentForeground = colorPalette[12];
-                    break;
-                case 95:
-                    currentForeground = colorPalette[13];
-                    break;
-                case 96:
-                    currentForeground = colorPalette[14];
-                    break;
-                case 97:
-                    currentForeground = colorPalette[15];
-                    break;
+            case '\r':
+                cursorCol = 0;
+                break;
 
-                // Bright background colors (100-107)
-                case 100:
-                    currentBackground = colorPalette[8];
-                    break;
-                case 101:
-                    currentBackground = colorPalette[9];
-                    break;
-                case 102:
-                    currentBackground = colorPalette[10];
-                    break;
-                case 103:
-                    currentBackground = colorPalette[11];
-                    break;
-                case 104:
-                    currentBackground = colorPalette[12];
-                    break;
-                case 105:
-                    currentBackground = colorPalette[13];
-                    break;
-                case 106:
-                    currentBackground = colorPalette[14];
-                    break;
-                case 107:
-                    currentBackground = colorPalette[15];
-                    break;
+            case '\t':
+                cursorCol = ((cursorCol / 8) + 1) * 8;
+                if (cursorCol >= width) {
+                    cursorCol = width - 1;
+                }
+                break;
 
-                default:
-                    // Unknown parameter, ignore
-                    break;
+            case '\b':
+                // Without a tty there is no line discipline echoing "\b \b",
+                // so backspace erases the cell it moves onto
+                if (cursorCol > 0) {
+                    cursorCol--;
+                    editLine(cursorRow).setChar(cursorCol, ' ');
+                }
+                break;
+
+            default:
+                // BEL and the remaining C0 controls have no visible effect
+                break;
+        }
+    }
+
+    private void printCharacter(int codePoint) {
+        int charWidth = CharWidth.width(codePoint);
+        if (charWidth == 0) {
+            combineWithPrevious(codePoint);
+            return;
+        }
+        if (charWidth == 2 && cursorCol == width - 1) {
+            if (width < 2) {
+                codePoint = '\uFFFD';
+                charWidth = 1;
+            } else {
+                // A double-width character never straddles two rows
+                wrapLine();
             }
         }
+
+        TextLine line = editLine(cursorRow);
+        breakWideCharacter(line, cursorCol);
+        line.setCell(cursorCol, codePoint, currentStyle);
+        if (charWidth == 2) {
+            breakWideCharacter(line, cursorCol + 1);
+            line.setCell(cursorCol + 1, TextLine.WIDE_TAIL, currentStyle);
+        }
+        cursorCol += charWidth;
+        if (cursorCol >= width) {
+            wrapLine();
+        }
     }
 
-    private int get256Color(int index) {
-        if (index < 16) {
-            return colorPalette[index];
-        } else if (index < 232) {
-            // 216 colors (6x6x6 cube)
-            index -= 16;
-            int r = (index / 36) * 51;
-            int g = ((index % 36) / 6) * 51;
-            int b = (index % 6) * 51;
-            return Color.rgb(r, g, b);
-        } else {
-            // 24 grayscale colors
-            int gray = ((index - 232) * 10) + 8;
-            return Color.rgb(gray, gray, gray);
+    /**
+     * Fast path for plain text: copy a run of printable ASCII from either
+     * {@code bytes} or {@code chars} straight into the row, a row-sized slice
+     * at a time, instead of feeding it through the parser per character
+     */
+    private void printAsciiRun(byte[] bytes, String chars, int from, int to) {
+        while (from < to) {
+            int count = Math.min(to - from, width - cursorCol);
+            TextLine line = editLine(cursorRow);
+            breakWideCharacter(line, cursorCol);
+            breakWideCharacter(line, cursorCol + count - 1);
+            if (bytes != null) {
+                line.setAscii(cursorCol, bytes, from, count, currentStyle);
+            } else {
+                line.setAscii(cursorCol, chars, from, count, currentStyle);
+            }
+            cursorCol += count;
+            from += count;
+            if (cursorCol >= width) {
+                wrapLine();
+            }
         }
     }
 
-    private void resetAttributes() {
-        currentForeground = defaultForeground;
-        currentBackground = defaultBackground;
-        currentBold = false;
-        currentUnderline = false;
-        currentReverse = false;
-        currentItalic = false;
+    private void wrapLine() {
+        screenLine(cursorRow).setWrapped(true);
+        cursorCol = 0;
+        lineFeed();
     }
 
-    private void processCharacter(char ch) {
-        lock.writeLock().lock();
-        try {
-            switch (ch) {
-                case '\n':
-                    cursorRow++;
-                    if (cursorRow >= height) {
-                        scrollUp();
-                        cursorRow = height - 1;
-                    }
-                    break;
+    /** Blank the other half of a double-width character about to be overwritten */
+    private static void breakWideCharacter(TextLine line, int col) {
+        if (line.getCodePoint(col) == TextLine.WIDE_TAIL && col > 0) {
+            line.setCell(col - 1, ' ', line.getStyle(col - 1));
+        } else if (line.isWide(col)) {
+            line.setCell(col + 1, ' ', line.getStyle(col + 1));
+        }
+    }
 
-                case '\r':
-                    cursorCol = 0;
-                    break;
+    /** Attach a zero-width character to the one before the cursor */
+    private void combineWithPrevious(int mark) {
+        int row = cursorRow;
+        int col = cursorCol - 1;
+        if (col < 0) {
+            if (row == 0 || !screenLine(row - 1).isWrapped()) {
+                return;
+            }
+            row--;
+            col = width - 1;
+        }
+        TextLine line = editLine(row);
+        if (line.getCodePoint(col) == TextLine.WIDE_TAIL) {
+            col--;
+        }
+        line.combine(col, mark);
+    }
 
-                case '\t':
-                    cursorCol = ((cursorCol / 8) + 1) * 8;
-                    if (cursorCol >= width) {
-                        cursorCol = width - 1;
-                    }
-                    break;
+    private void lineFeed() {
+        if (cursorRow == scrollBottom) {
+            scrollRegionUp(scrollTop, scrollBottom, 1, true);
+        } else if (cursorRow < height - 1) {
+            cursorRow++;
+        }
+    }
 
-                case '\b':
-                    if (cursorCol > 0) {
-                        cursorCol--;
-                    }
-                    break;
+    private void reverseIndex() {
+        if (cursorRow == scrollTop) {
+            scrollRegionDown(scrollTop, scrollBottom, 1);
+        } else if (cursorRow > 0) {
+            cursorRow--;
+        }
+    }
 
-                default:
-                    setCharAtCursor(ch);
-                    cursorCol++;
-                    if (cursorCol >= width) {
-                        cursorCol = 0;
-                        cursorRow++;
-                        if (cursorRow >= height) {
-                            scrollUp();
-                            cursorRow = height - 1;
-                        }
-                    }
-                    break;
+    /**
+     * Scroll rows [top, bottom] up by n. When scrolling output and the region is
+     * the whole screen the top rows go into history; otherwise the region's rows
+     * are rotated in place and the rows rotated to the bottom are blanked for
+     * reuse, so deleted lines are discarded.
+     */
+    private void scrollRegionUp(int top, int bottom, int n, boolean intoHistory) {
+        n = Math.min(n, bottom - top + 1);
+        if (intoHistory && top == 0 && bottom == height - 1) {
+            for (int i = 0; i < n; i++) {
+                scrollUp();
             }
-        } finally {
-            lock.writeLock().unlock();
+            return;
         }
+        long topLine = screenTopLine();
+        screenLines.rotate(topLine + top, topLine + bottom + 1, n);
+        for (int row = bottom - n + 1; row <= bottom; row++) {
+            screenLine(row).reset(width);
+        }
+        markRows(top, bottom + 1);
     }
 
-    private void setCharAtCursor(char ch) {
-        if (cursorRow >= 0 && cursorRow < height && cursorCol >= 0) {
-            TextLine line = screen.get(cursorRow);
-            line.ensureCapacity(cursorCol);
+    /** Scroll rows [top, bottom] down by n, blanking the rows exposed at the top */
+    private void scrollRegionDown(int top, int bottom, int n) {
+        n = Math.min(n, bottom - top + 1);
+        long topLine = screenTopLine();
+        screenLines.rotate(topLine + top, topLine + bottom + 1, -n);
+        for (int row = top; row < top + n; row++) {
+            screenLine(row).reset(width);
+        }
+        markRows(top, bottom + 1);
+    }
 
-            Cell cell = new Cell(
-                ch,
-                currentForeground,
-                currentBackground,
-                currentBold,
-                currentUnderline,
-                currentReverse,
-                currentItalic
-            );
-            line.setCell(cursorCol, cell);
+    private void executeEscape(int finalChar, int intermediates) {
+        if (intermediates != 0) {
+            // Character set designations and the like are not supported
+            return;
+        }
+        switch (finalChar) {
+            case '7': // Save cursor
+                savedCursorRow = cursorRow;
+                savedCursorCol = cursorCol;
+                break;
+
+            case '8': // Restore cursor
+                cursorRow = Math.max(0, Math.min(height - 1, savedCursorRow));
+                cursorCol = Math.max(0, Math.min(width - 1, savedCursorCol));
+                break;
+
+            case 'D': // Index
+                lineFeed();
+                break;
+
+            case 'E': // Next line
+                cursorCol = 0;
+                lineFeed();
+                break;
+
+            case 'M': // Reverse index
+                reverseIndex();
+                break;
+
+            default:
+                break;
         }
     }
 
-    private void scrollUp() {
-        if (!screen.isEmpty()) {
-            TextLine removedLine = screen.remove(0);
-            scrollbackBuffer.add(removedLine);
+    private void executeOsc(CharSequence data) {
+        // OSC 0 and 2 set the window title: "0;title"
+        if (data.length() >= 2 && (data.charAt(0) == '0' || data.charAt(0) == '2')
+                && data.charAt(1) == ';') {
+            if (!titleMatches(data, 2)) {
+                title = data.subSequence(2, data.length()).toString();
+            }
+        }
+    }
 
-            // Limit scrollback size
-            while (scrollbackBuffer.size() > maxScrollbackLines) {
-                scrollbackBuffer.remove(0);
+    private boolean titleMatches(CharSequence data, int start) {
+        String current = title;
+        if (current.length() != data.length() - start) {
+            return false;
+        }
+        for (int i = 0; i < current.length(); i++) {
+            if (current.charAt(i) != data.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Routes parser callbacks to the emulator while the lock is held by write() */
+    private final class ParserHandler implements TerminalParser.Handler {
+        @Override
+        public void print(int codePoint) {
+            printCharacter(codePoint);
+        }
+
+        @Override
+        public void execute(int control) {
+            executeControl(control);
+        }
+
+        @Override
+        public void csiDispatch(int finalChar, int[] params, int paramCount, int subParameters,
+                                int privateMarker, int intermediates) {
+            if (intermediates == 0) {
+                executeCommand(finalChar, params, paramCount, subParameters, privateMarker);
             }
+        }
+
+        @Override
+        public void escDispatch(int finalChar, int intermediates) {
+            executeEscape(finalChar, intermediates);
+        }
 
-            screen.add(new TextLine(width));
+        @Override
+        public void oscDispatch(CharSequence data) {
+            executeOsc(data);
         }
     }
 
+    /** Re-intern the current SGR state; called once per SGR sequence, not per character */
+    private void updateCurrentStyle() {
+        int attributes = 0;
+        if (currentBold) attributes |= StyleTable.BOLD;
+        if (currentUnderline) attributes |= StyleTable.UNDERLINE;
+        if (currentReverse) attributes |= StyleTable.REVERSE;
+        if (currentItalic) attributes |= StyleTable.ITALIC;
+        reclaimStyles();
+        currentStyle = styles.intern(currentForeground, currentBackground, attributes);
+    }
+
+    /**
+     * Free style IDs no longer used once the table runs low. Only called where
+     * every ID in use is stored in a cell or a style field, never while lines
+     * read back from history are being combined.
+     */
+    private void reclaimStyles() {
+        if (!styles.needsReclaim()) {
+            return;
+        }
+        // Lines read back from history are decoded again, with fresh IDs, when next needed
+        archive.dropDecoded();
+        if (spill != null) {
+            spill.dropDecoded();
+        }
+        if (historyReflow != null) {
+            historyReflow.dropCachedRows();
+        }
+        styles.reclaim(this::markLiveStyles);
+    }
+
+    private void markLiveStyles(StyleTable table) {
+        table.markLive(currentStyle);
+        table.markLive(savedPrimaryStyle);
+        lines.markStyles(table);
+        alternateLines.markStyles(table);
+        ScreenSnapshot published = snapshot;
+        if (published != null) {
+            for (TextLine row : published.rows()) {
+                if (row != null) {
+                    row.markStyles(table);
+                }
+            }
+        }
+    }
+
+    private void scrollUp() {
+        // On the alternate screen the ring has no history, so the top row is dropped
+        screenLines.append(width);
+        markScrolledUp();
+        if (scrollOffset > 0) {
+            // Keep a scrolled-back viewport on the same content
+            scrollOffset = Math.min(scrollOffset + 1, getScrollbackSize());
+        }
+    }
+
+    private TextLine screenLine(int row) {
+        return screenLines.get(screenTopLine() + row);
+    }
+
+    /** Line number of row 0 of the active screen within its ring */
+    private long screenTopLine() {
+        return screenLines.endLineNumber() - height;
+    }
+
+    private void markRow(int row) {
+        damage.markRow(row);
+        snapshotDamage.markRow(row);
+    }
+
+    private void markRows(int fromRow, int toRow) {
+        damage.markRows(fromRow, toRow);
+        snapshotDamage.markRows(fromRow, toRow);
+    }
+
+    private void markAll() {
+        damage.markAll();
+        snapshotDamage.markAll();
+    }
+
+    private void markScrolledUp() {
+        damage.scrollUp();
+        snapshotDamage.scrollUp();
+    }
+
+    /** Screen row about to be modified; records the damage */
+    private TextLine editLine(int row) {
+        markRow(row);
+        return screenLine(row);
+    }
+
+    /**
+     * Scroll the viewport through history. Negative values show older lines,
+     * positive values move back towards the live screen.
+     */
     public void scroll(int lines) {
-        lock.writeLock().lock();
+        lock.lock();
         try {
-            if (lines < 0) {
-                // Scroll down (show more scrollback)
-                int scrollAmount = -lines;
-                for (int i = 0; i < scrollAmount; i++) {
-                    if (!scrollbackBuffer.isEmpty()) {
-                        TextLine line = scrollbackBuffer.remove(scrollbackBuffer.size() - 1);
-                        screen.add(0, line);
-                        if (screen.size() > height) {
-                            TextLine removed = screen.remove(screen.size() - 1);
-                            scrollbackBuffer.add(0, removed);
-                        }
-                    }
-                }
+            if (alternateScreenActive) {
+                // Full-screen programs own the display; there is no history to show
+                return;
+            }
+            int offset = Math.max(0, scrollOffset - lines);
+            HistoryReflow reflow = activeHistoryReflow();
+            long topLine = getScreenTopLineNumber() - offset;
+            if (reflow != null && topLine < reflow.boundary()) {
+                // Rewrap far enough back that the size below is exact for the new top row
+                reflow.row(reflow.boundary() - 1 - topLine, getFirstLineNumber());
+            }
+            offset = Math.min(getScrollbackSize(), offset);
+            if (offset != scrollOffset) {
+                damage.markAll();
+                // publishState moves the rows that stay in view by the offset change
+                scrollOffset = offset;
+                publishState();
             }
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
     public void moveCursorTo(int row, int col) {
-        cursorRow = Math.max(0, Math.min(height - 1, row));
-        cursorCol = Math.max(0, Math.min(width - 1, col));
+        lock.lock();
+        try {
+            cursorRow = Math.max(0, Math.min(height - 1, row));
+            cursorCol = Math.max(0, Math.min(width - 1, col));
+            publishState();
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Line shown at the given viewport row, taking the scroll position into account
+     */
     public TextLine getLine(int row) {
-        lock.readLock().lock();
+        lock.lock();
         try {
-            if (row >= 0 && row < screen.size()) {
-                return screen.get(row);
+            if (row >= 0 && row < height) {
+                return viewportLine(row);
             }
-            return new TextLine(width);
+            return new TextLine(styles, width);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TextLine viewportLine(int row) {
+        TextLine line = alternateScreenActive ? screenLine(row)
+            : viewLine(getScreenTopLineNumber() - scrollOffset + row);
+        return line != null ? line : new TextLine(styles, width);
+    }
+
+    /**
+     * Drop a partly received escape sequence or UTF-8 character, for example
+     * when a new session starts writing where a killed process stopped mid-way
+     */
+    public void resetInput() {
+        lock.lock();
+        try {
+            parser.reset();
+            decoder.reset();
         } finally {
-            lock.readLock().unlock();
+            lock.unlock();
         }
     }
 
     public void clearScreen() {
-        lock.writeLock().lock();
+        lock.lock();
         try {
-            screen.clear();
-            for (int i = 0; i < height; i++) {
-                screen.add(new TextLine(width));
+            for (int row = 0; row < height; row++) {
+                editLine(row).reset(width);
             }
             cursorRow = 0;
             cursorCol = 0;
+            publishState();
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
     private void clearToEndOfScreen() {
-        lock.writeLock().lock();
-        try {
-            // Clear from cursor to end of current line
-            clearToEndOfLine();
+        // Clear from cursor to end of current line
+        clearToEndOfLine();
 
-            // Clear remaining lines
-            for (int i = cursorRow + 1; i < height; i++) {
-                screen.set(i, new TextLine(width));
-            }
-        } finally {
-            lock.writeLock().unlock();
+        // Clear remaining lines
+        for (int i = cursorRow + 1; i < height; i++) {
+            editLine(i).reset(width);
         }
     }
 
     private void clearToBeginningOfScreen() {
-        lock.writeLock().lock();
-        try {
-            // Clear from beginning to cursor on current line
-            clearToBeginningOfLine();
+        // Clear from beginning to cursor on current line
+        clearToBeginningOfLine();
 
-            // Clear previous lines
-            for (int i = 0; i < cursorRow; i++) {
-                screen.set(i, new TextLine(width));
-            }
-        } finally {
-            lock.writeLock().unlock();
+        // Clear previous lines
+        for (int i = 0; i < cursorRow; i++) {
+            editLine(i).reset(width);
         }
     }
 
     private void clearToEndOfLine() {
-        lock.writeLock().lock();
-        try {
-            if (cursorRow >= 0 && cursorRow < height) {
-                TextLine line = screen.get(cursorRow);
-                line.ensureCapacity(width - 1);
-                for (int i = cursorCol; i < width; i++) {
-                    line.setChar(i, ' ');
-                }
+        if (cursorRow >= 0 && cursorRow < height) {
+            TextLine line = editLine(cursorRow);
+            line.ensureCapacity(width - 1);
+            line.setWrapped(false);
+            for (int i = cursorCol; i < width; i++) {
+                line.setChar(i, ' ');
             }
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
     private void clearToBeginningOfLine() {
-        lock.writeLock().lock();
-        try {
-            if (cursorRow >= 0 && cursorRow < height) {
-                TextLine line = screen.get(cursorRow);
-                for (int i = 0; i <= cursorCol; i++) {
-                    line.setChar(i, ' ');
-                }
+        if (cursorRow >= 0 && cursorRow < height) {
+            TextLine line = editLine(cursorRow);
+            for (int i = 0; i <= cursorCol; i++) {
+                line.setChar(i, ' ');
             }
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
     private void clearLine() {
-        lock.writeLock().lock();
+        if (cursorRow >= 0 && cursorRow < height) {
+            editLine(cursorRow).reset(width);
+        }
+    }
+
+    /**
+     * Move everything that changed since the previous call into {@code out}
+     * and start tracking afresh. Meant to be called once per rendered frame.
+     */
+    public void fetchDamage(ScreenDamage out) {
+        lock.lock();
         try {
-            if (cursorRow >= 0 && cursorRow < height) {
-                screen.set(cursorRow, new TextLine(width));
+            if (scrollOffset > 0 && !damage.isEmpty()) {
+                // Screen rows do not line up with viewport rows while scrolled back
+                damage.markAll();
             }
+            damage.setCursor(damageCursorRow, damageCursorCol, cursorRow, cursorCol);
+            damageCursorRow = cursorRow;
+            damageCursorCol = cursorCol;
+            out.copyFrom(damage);
+            damage.clear();
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
@@ -782,11 +1677,336 @@ public class TerminalEmulator {
         return height;
     }
 
+    /**
+     * Make the cursor visible to other threads and mark the snapshot stale.
+     * Called with the lock held at the end of every public mutation.
+     */
+    private void publishState() {
+        publishedCursor = ((long) cursorRow << 32) | (cursorCol & 0xFFFFFFFFL);
+        reclaimStyles();
+        snapshotStale = true;
+    }
+
+    /**
+     * Publish a snapshot of the viewport, copying only the rows damaged since
+     * the previous one. Called with the lock held.
+     */
+    private void publishSnapshot() {
+        snapshotStale = false;
+        ScreenSnapshot previous = snapshot;
+        boolean modesChanged = previous == null || previous.getCursorRow() != cursorRow
+            || previous.getCursorCol() != cursorCol
+            || previous.isCursorVisible() != cursorVisible
+            || previous.isAlternateScreen() != alternateScreenActive
+            || previous.getScrollOffset() != scrollOffset;
+        if (!modesChanged && snapshotDamage.isEmpty()) {
+            return;
+        }
+
+        long version = previous == null ? 1 : previous.getVersion() + 1;
+        boolean copyAll = previous == null || snapshotDamage.isFullRedraw()
+            || previous.getHeight() != height || previous.getWidth() != width;
+        // Damage is in screen rows, and viewport row v shows screen row v - scrollOffset.
+        // The screen moved up by the scroll delta and the viewport back by the offset
+        // change, so the line now at viewport row v was at row v + delta.
+        int previousOffset = copyAll ? 0 : previous.getScrollOffset();
+        int delta = snapshotDamage.getScrollDelta() - (scrollOffset - previousOffset);
+        TextLine[] rows = new TextLine[height];
+        long[] rowVersions = new long[height];
+        for (int row = 0; row < height; row++) {
+            int previousRow = row + delta;
+            int screenRow = row - scrollOffset;
+            // History lines never change, but one that was on the screen in the
+            // previous snapshot may have changed before it scrolled off
+            boolean changed = screenRow >= 0 ? snapshotDamage.isRowDirty(screenRow)
+                : previousRow >= previousOffset
+                    && snapshotDamage.isScrolledOffRowDirty(previousRow - previousOffset);
+            if (copyAll || changed || previousRow < 0 || previousRow >= height) {
+                rows[row] = viewportLine(row).copy();
+                rowVersions[row] = version;
+            } else {
+                rows[row] = previous.rows()[previousRow];
+                rowVersions[row] = previous.rowVersions()[previousRow];
+            }
+        }
+        snapshotDamage.clear();
+        snapshot = new ScreenSnapshot(version, rows, rowVersions, width, cursorRow, cursorCol,
+            cursorVisible, alternateScreenActive, scrollOffset);
+    }
+
+    /**
+     * Frame of the viewport as of the last mutation. Output since the previous
+     * call is published first, briefly taking the lock; otherwise this is a
+     * single volatile read. Safe to call from the UI thread.
+     */
+    public ScreenSnapshot getSnapshot() {
+        if (snapshotStale) {
+            lock.lock();
+            try {
+                if (snapshotStale) {
+                    publishSnapshot();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return snapshot;
+    }
+
+    /** Window title last set through OSC 0 or 2 */
+    public String getTitle() {
+        return title;
+    }
+
     public int getCursorRow() {
-        return cursorRow;
+        return (int) (publishedCursor >> 32);
     }
 
     public int getCursorCol() {
-        return cursorCol;
+        return (int) publishedCursor;
+    }
+
+    /** Number of lines of history above the screen */
+    public int getScrollbackSize() {
+        int spilled = spill != null ? spill.size() : 0;
+        int size = lines.size() - height + archive.size() + spilled;
+        HistoryReflow reflow = activeHistoryReflow();
+        return reflow != null ? size + reflow.extraRows(getFirstLineNumber()) : size;
+    }
+
+    public int getScrollOffset() {
+        return scrollOffset;
+    }
+
+    /** Absolute line number of the oldest line still in history */
+    public long getFirstLineNumber() {
+        if (spill != null && spill.size() > 0) {
+            return spill.firstLineNumber();
+        }
+        return archive.size() > 0 ? archive.firstLineNumber() : lines.firstLineNumber();
+    }
+
+    /** Absolute line number of screen row 0 */
+    public long getScreenTopLineNumber() {
+        return lines.endLineNumber() - height;
+    }
+
+    /**
+     * Line addressed by its absolute line number, or null once it has been
+     * evicted from history. A line read back from the archive is only valid
+     * until the next call.
+     */
+    public TextLine getLineAt(long lineNumber) {
+        lock.lock();
+        try {
+            reclaimStyles();
+            return historyLine(lineNumber);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Viewport line by its number in rows of the current width. Numbers below
+     * the reflow boundary count rewrapped rows rather than stored lines.
+     */
+    private TextLine viewLine(long lineNumber) {
+        HistoryReflow reflow = activeHistoryReflow();
+        if (reflow != null && lineNumber < reflow.boundary()) {
+            return reflow.row(reflow.boundary() - 1 - lineNumber, getFirstLineNumber());
+        }
+        return historyLine(lineNumber);
+    }
+
+    private HistoryReflow activeHistoryReflow() {
+        if (historyReflow != null && getFirstLineNumber() >= historyReflow.boundary()) {
+            // Everything wrapped at an older width has been evicted
+            historyReflow = null;
+        }
+        return historyReflow;
+    }
+
+    /**
+     * Find every occurrence of {@code query} in history and on screen, oldest
+     * first, up to {@code limit} hits. Lines are matched as logical lines, so
+     * a hit may continue across a soft wrap. Spilled and archived lines are
+     * only read for index blocks that may contain the query; the hot history
+     * and the screen are scanned directly. The lock is held only to capture
+     * the history and the candidate blocks; blocks are inflated and matched
+     * outside it, so output is not held up by a long search.
+     */
+    public List<SearchMatch> search(String query, boolean ignoreCase, int limit) {
+        List<SearchMatch> matches = new ArrayList<>();
+        if (query == null || query.isEmpty() || limit <= 0) {
+            return matches;
+        }
+        SubstringMatcher matcher = new SubstringMatcher(query, ignoreCase);
+        long first;
+        long hotFirst;
+        long end;
+        ScrollbackSpill.Snapshot spilled;
+        ScrollbackArchive.Reader archived;
+        TextLine[] hot;
+        // Start and end line of every index block that may contain the query
+        long[] candidates = new long[16];
+        int candidateCount = 0;
+        lock.lock();
+        try {
+            first = getFirstLineNumber();
+            hotFirst = lines.firstLineNumber();
+            end = lines.endLineNumber();
+            searchIndex.trim(first);
+            spilled = spill != null ? spill.capture() : null;
+            archived = archive.reader();
+            Iterator<ScrollbackIndex.Block> blocks = searchIndex.blocks();
+            while (blocks.hasNext()) {
+                ScrollbackIndex.Block block = blocks.next();
+                if (matcher.mayMatch(block.bits)) {
+                    if (candidateCount == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                    }
+                    candidates[candidateCount++] = block.firstLineNumber;
+                    candidates[candidateCount++] = Math.min(block.endLineNumber(), hotFirst);
+                }
+            }
+            // Ring lines are reused as they scroll, so the hot lines are copied
+            hot = new TextLine[(int) (end - hotFirst)];
+            for (int i = 0; i < hot.length; i++) {
+                hot[i] = lines.get(hotFirst + i).copy();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        HistoryReflow.LineSource source = lineNumber -> {
+            if (lineNumber >= hotFirst) {
+                return lineNumber < end ? hot[(int) (lineNumber - hotFirst)] : null;
+            }
+            TextLine line = archived.get(lineNumber);
+            if (line == null && spilled != null) {
+                line = spilled.get(lineNumber);
+            }
+            return line;
+        };
+        try {
+            // Logical lines run past the end of their block, so track how far
+            // the scan got to not read them twice
+            long scanned = first;
+            if (spilled != null) {
+                long[] bits = new long[ScrollbackIndex.BLOCK_WORDS];
+                for (int block = 0; block < spilled.blockCount(); block++) {
+                    if (spilled.readBits(block, bits) && matcher.mayMatch(bits)) {
+                        long start = spilled.blockFirstLineNumber(block);
+                        scanned = searchBlock(matcher, source, Math.max(scanned, start),
+                            start + ScrollbackArchive.BLOCK_LINES, first, end, matches, limit);
+                        if (scanned < 0) {
+                            return matches;
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < candidateCount; i += 2) {
+                scanned = searchBlock(matcher, source, Math.max(scanned, candidates[i]),
+                    candidates[i + 1], first, end, matches, limit);
+                if (scanned < 0) {
+                    return matches;
+                }
+            }
+            // The hot history is not indexed: scan it from the start of the
+            // logical line it begins in
+            long start = hotFirst;
+            while (start > Math.max(first, scanned)) {
+                TextLine previous = source.get(start - 1);
+                if (previous == null || !previous.isWrapped()) {
+                    break;
+                }
+                start--;
+            }
+            searchBlock(matcher, source, Math.max(scanned, start), end, first, end, matches,
+                limit);
+            return matches;
+        } finally {
+            archived.close();
+            if (spilled != null) {
+                spilled.close();
+            }
+        }
+    }
+
+    /**
+     * Match the logical lines starting in [from, to), skipping rows at
+     * {@code from} that continue a line started before it. Returns the line
+     * after the last one read, or -1 once {@code limit} hits are found.
+     */
+    private static long searchBlock(SubstringMatcher matcher, HistoryReflow.LineSource source,
+                                    long from, long to, long first, long end,
+                                    List<SearchMatch> out, int limit) {
+        long n = from;
+        if (n > first) {
+            TextLine previous = source.get(n - 1);
+            while (n < to && previous != null && previous.isWrapped()) {
+                previous = source.get(n);
+                n++;
+            }
+        }
+        while (n < to) {
+            matcher.clear();
+            TextLine line;
+            do {
+                line = source.get(n);
+                if (line == null) {
+                    break;
+                }
+                matcher.append(n, line);
+                n++;
+            } while (line.isWrapped() && n < end);
+            if (line == null) {
+                n++;
+            } else if (!matcher.find(out, limit)) {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Copy the logical line that starts at {@code lineNumber} (or at the oldest
+     * line still held, if that is later) into {@code view}. Returns the number
+     * of the line after it, or -1 once past the end of the screen. Used by
+     * background searches, which hold the lock only for the copy.
+     */
+    long readLogicalLine(long lineNumber, LineCharSequence view) {
+        lock.lock();
+        try {
+            long n = Math.max(lineNumber, getFirstLineNumber());
+            long end = lines.endLineNumber();
+            if (n >= end) {
+                return -1;
+            }
+            view.clear();
+            TextLine line;
+            do {
+                line = historyLine(n);
+                if (line == null) {
+                    break;
+                }
+                view.append(n, line);
+                n++;
+            } while (line.isWrapped() && n < end);
+            return Math.max(n, lineNumber + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private TextLine historyLine(long lineNumber) {
+        TextLine line = lines.get(lineNumber);
+        if (line == null) {
+            line = archive.get(lineNumber);
+        }
+        if (line == null && spill != null) {
+            line = spill.get(lineNumber);
+        }
+        return line;
     }
 }
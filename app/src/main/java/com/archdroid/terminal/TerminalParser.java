@@ -0,0 +1,301 @@
+package com.archdroid.terminal;
+
+/**
+ * Table-driven DEC/ANSI escape sequence parser
+ * Follows the VT500 state machine (ground, escape, CSI, OSC, DCS and the
+ * string states). State survives between {@link #feed} calls, so sequences
+ * split across reads from the process are handled correctly. Parameters are
+ * collected into a reusable int array and nothing is allocated per sequence.
+ */
+class TerminalParser {
+
+    interface Handler {
+        /** Printable character in the ground state */
+        void print(int codePoint);
+
+        /** C0 control character */
+        void execute(int control);
+
+        /**
+         * Complete CSI sequence. Omitted parameters are reported as -1. Bit i
+         * of {@code subParameters} is set when params[i] followed a ':' rather
+         * than a ';'. {@code privateMarker} is one of '?', '>', '<', '=' or 0,
+         * and {@code intermediates} packs up to two intermediate bytes.
+         */
+        void csiDispatch(int finalChar, int[] params, int paramCount, int subParameters,
+                         int privateMarker, int intermediates);
+
+        /** Complete ESC sequence */
+        void escDispatch(int finalChar, int intermediates);
+
+        /** Complete OSC string, without the terminator */
+        void oscDispatch(CharSequence data);
+    }
+
+    // One bit per parameter in the sub-parameter mask
+    static final int MAX_PARAMS = 32;
+    private static final int MAX_PARAM_VALUE = 65535;
+    private static final int MAX_OSC_LENGTH = 4096;
+
+    // States
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int ESCAPE_INTERMEDIATE = 2;
+    private static final int CSI_ENTRY = 3;
+    private static final int CSI_PARAM = 4;
+    private static final int CSI_INTERMEDIATE = 5;
+    private static final int CSI_IGNORE = 6;
+    private static final int OSC_STRING = 7;
+    private static final int DCS_ENTRY = 8;
+    private static final int DCS_PARAM = 9;
+    private static final int DCS_INTERMEDIATE = 10;
+    private static final int DCS_PASSTHROUGH = 11;
+    private static final int DCS_IGNORE = 12;
+    private static final int SOS_PM_APC_STRING = 13;
+    private static final int STATE_COUNT = 14;
+
+    // Actions
+    private static final int NONE = 0;
+    private static final int PRINT = 1;
+    private static final int EXECUTE = 2;
+    private static final int COLLECT = 3;
+    private static final int PARAM = 4;
+    private static final int ESC_DISPATCH = 5;
+    private static final int CSI_DISPATCH = 6;
+    private static final int OSC_PUT = 7;
+    private static final int IGNORE = 8;
+
+    // Per state and 7-bit input byte: (action << 4) | next state
+    private static final byte[] TABLE = new byte[STATE_COUNT * 128];
+
+    static {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            // Defaults: stay put and ignore
+            range(state, 0x00, 0x7F, IGNORE, state);
+        }
+
+        for (int state : new int[]{GROUND, ESCAPE, ESCAPE_INTERMEDIATE, CSI_ENTRY,
+                CSI_PARAM, CSI_INTERMEDIATE, CSI_IGNORE}) {
+            executeC0(state);
+        }
+
+        range(GROUND, 0x20, 0x7E, PRINT, GROUND);
+
+        range(ESCAPE, 0x20, 0x2F, COLLECT, ESCAPE_INTERMEDIATE);
+        range(ESCAPE, 0x30, 0x7E, ESC_DISPATCH, GROUND);
+        set(ESCAPE, '[', NONE, CSI_ENTRY);
+        set(ESCAPE, ']', NONE, OSC_STRING);
+        set(ESCAPE, 'P', NONE, DCS_ENTRY);
+        set(ESCAPE, 'X', NONE, SOS_PM_APC_STRING);
+        set(ESCAPE, '^', NONE, SOS_PM_APC_STRING);
+        set(ESCAPE, '_', NONE, SOS_PM_APC_STRING);
+
+        range(ESCAPE_INTERMEDIATE, 0x20, 0x2F, COLLECT, ESCAPE_INTERMEDIATE);
+        range(ESCAPE_INTERMEDIATE, 0x30, 0x7E, ESC_DISPATCH, GROUND);
+
+        range(CSI_ENTRY, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+        range(CSI_ENTRY, 0x30, 0x39, PARAM, CSI_PARAM);
+        set(CSI_ENTRY, ':', PARAM, CSI_PARAM);
+        set(CSI_ENTRY, ';', PARAM, CSI_PARAM);
+        range(CSI_ENTRY, 0x3C, 0x3F, COLLECT, CSI_PARAM);
+        range(CSI_ENTRY, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+        range(CSI_PARAM, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+        range(CSI_PARAM, 0x30, 0x39, PARAM, CSI_PARAM);
+        set(CSI_PARAM, ':', PARAM, CSI_PARAM);
+        set(CSI_PARAM, ';', PARAM, CSI_PARAM);
+        range(CSI_PARAM, 0x3C, 0x3F, NONE, CSI_IGNORE);
+        range(CSI_PARAM, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+        range(CSI_INTERMEDIATE, 0x20, 0x2F, COLLECT, CSI_INTERMEDIATE);
+        range(CSI_INTERMEDIATE, 0x30, 0x3F, NONE, CSI_IGNORE);
+        range(CSI_INTERMEDIATE, 0x40, 0x7E, CSI_DISPATCH, GROUND);
+
+        range(CSI_IGNORE, 0x40, 0x7E, NONE, GROUND);
+
+        range(OSC_STRING, 0x20, 0x7F, OSC_PUT, OSC_STRING);
+        // xterm accepts BEL as the OSC terminator
+        set(OSC_STRING, 0x07, NONE, GROUND);
+
+        range(DCS_ENTRY, 0x20, 0x2F, COLLECT, DCS_INTERMEDIATE);
+        range(DCS_ENTRY, 0x30, 0x39, PARAM, DCS_PARAM);
+        set(DCS_ENTRY, ':', NONE, DCS_IGNORE);
+        set(DCS_ENTRY, ';', PARAM, DCS_PARAM);
+        range(DCS_ENTRY, 0x3C, 0x3F, COLLECT, DCS_PARAM);
+        range(DCS_ENTRY, 0x40, 0x7E, NONE, DCS_PASSTHROUGH);
+
+        range(DCS_PARAM, 0x20, 0x2F, COLLECT, DCS_INTERMEDIATE);
+        range(DCS_PARAM, 0x30, 0x39, PARAM, DCS_PARAM);
+        set(DCS_PARAM, ':', NONE, DCS_IGNORE);
+        set(DCS_PARAM, ';', PARAM, DCS_PARAM);
+        range(DCS_PARAM, 0x3C, 0x3F, NONE, DCS_IGNORE);
+        range(DCS_PARAM, 0x40, 0x7E, NONE, DCS_PASSTHROUGH);
+
+        range(DCS_INTERMEDIATE, 0x20, 0x2F, COLLECT, DCS_INTERMEDIATE);
+        range(DCS_INTERMEDIATE, 0x30, 0x3F, NONE, DCS_IGNORE);
+        range(DCS_INTERMEDIATE, 0x40, 0x7E, NONE, DCS_PASSTHROUGH);
+
+        // Transitions valid from anywhere
+        for (int state = 0; state < STATE_COUNT; state++) {
+            set(state, 0x18, EXECUTE, GROUND);
+            set(state, 0x1A, EXECUTE, GROUND);
+            set(state, 0x1B, NONE, ESCAPE);
+        }
+    }
+
+    private static void executeC0(int state) {
+        range(state, 0x00, 0x17, EXECUTE, state);
+        set(state, 0x19, EXECUTE, state);
+        range(state, 0x1C, 0x1F, EXECUTE, state);
+    }
+
+    private static void range(int state, int from, int to, int action, int next) {
+        for (int c = from; c <= to; c++) {
+            set(state, c, action, next);
+        }
+    }
+
+    private static void set(int state, int c, int action, int next) {
+        TABLE[state * 128 + c] = (byte) ((action << 4) | next);
+    }
+
+    private final Handler handler;
+
+    private int state = GROUND;
+    private final int[] params = new int[MAX_PARAMS];
+    private int paramCount = 0;
+    private int subParameters = 0;
+    private int privateMarker = 0;
+    private int intermediates = 0;
+    private final StringBuilder osc = new StringBuilder();
+
+    TerminalParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    boolean isGround() {
+        return state == GROUND;
+    }
+
+    void reset() {
+        state = GROUND;
+        clear();
+    }
+
+    /** Feed one character (or full code point) of output */
+    void feed(int c) {
+        if (c >= 0x80) {
+            // Everything above 7-bit ASCII is text in the ground and string
+            // states; C1 controls are not used in UTF-8 output and are dropped
+            if (state == GROUND) {
+                if (c >= 0xA0) {
+                    handler.print(c);
+                }
+            } else if (state == OSC_STRING) {
+                putOsc(c);
+            }
+            return;
+        }
+
+        int entry = TABLE[state * 128 + c] & 0xFF;
+        int action = entry >> 4;
+        int next = entry & 0x0F;
+
+        if (next != state) {
+            exitState(state);
+        }
+
+        switch (action) {
+            case PRINT:
+                handler.print(c);
+                break;
+            case EXECUTE:
+                handler.execute(c);
+                break;
+            case COLLECT:
+                collect(c);
+                break;
+            case PARAM:
+                param(c);
+                break;
+            case ESC_DISPATCH:
+                handler.escDispatch(c, intermediates);
+                break;
+            case CSI_DISPATCH:
+                handler.csiDispatch(c, params, paramCount, subParameters, privateMarker,
+                    intermediates);
+                break;
+            case OSC_PUT:
+                putOsc(c);
+                break;
+            default:
+                break;
+        }
+
+        if (next != state) {
+            enterState(next);
+        }
+    }
+
+    private void exitState(int oldState) {
+        if (oldState == OSC_STRING) {
+            handler.oscDispatch(osc);
+        }
+    }
+
+    private void enterState(int newState) {
+        state = newState;
+        switch (newState) {
+            case ESCAPE:
+            case CSI_ENTRY:
+            case DCS_ENTRY:
+                clear();
+                break;
+            case OSC_STRING:
+                osc.setLength(0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void clear() {
+        paramCount = 0;
+        subParameters = 0;
+        privateMarker = 0;
+        intermediates = 0;
+    }
+
+    private void collect(int c) {
+        if (c >= 0x3C && c <= 0x3F) {
+            privateMarker = c;
+        } else {
+            intermediates = (intermediates << 8) | c;
+        }
+    }
+
+    private void param(int c) {
+        if (paramCount == 0) {
+            params[0] = -1;
+            paramCount = 1;
+        }
+        if (c == ';' || c == ':') {
+            if (paramCount < MAX_PARAMS) {
+                if (c == ':') {
+                    subParameters |= 1 << paramCount;
+                }
+                params[paramCount++] = -1;
+            }
+            return;
+        }
+        int current = params[paramCount - 1];
+        int value = (current < 0 ? 0 : current) * 10 + (c - '0');
+        params[paramCount - 1] = Math.min(value, MAX_PARAM_VALUE);
+    }
+
+    private void putOsc(int c) {
+        if (osc.length() < MAX_OSC_LENGTH) {
+            osc.appendCodePoint(c);
+        }
+    }
+}
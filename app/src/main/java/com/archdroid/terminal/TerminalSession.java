@@ -27,7 +27,11 @@ public class TerminalSession {
     private OutputListener outputListener;
 
     public interface OutputListener {
-        void onOutput(String data);
+        /**
+         * Raw output bytes. The buffer is reused for the next read, so the data
+         * must be consumed before returning.
+         */
+        void onOutput(byte[] data, int offset, int length);
     }
 
     public TerminalSession(String launchScript) {
@@ -123,13 +127,10 @@ public class TerminalSession {
 
                 int bytesRead;
                 while (isRunning.get() && (bytesRead = inputStream.read(buffer)) != -1) {
-                    if (bytesRead > 0) {
-                        String data = new String(buffer, 0, bytesRead,
-                            java.nio.charset.StandardCharsets.UTF_8);
-
-                        if (outputListener != null) {
-                            outputListener.onOutput(data);
-                        }
+                    // Decoding is left to the emulator, which keeps partial
+                    // UTF-8 sequences across reads
+                    if (bytesRead > 0 && outputListener != null) {
+                        outputListener.onOutput(buffer, 0, bytesRead);
                     }
                 }
 
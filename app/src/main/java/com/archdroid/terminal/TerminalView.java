@@ -1,11 +1,14 @@
 package com.archdroid.terminal;
 
+import android.content.ActivityNotFoundException;
 import android.content.Context;
+import android.content.Intent;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Typeface;
+import android.net.Uri;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -16,6 +19,8 @@ import androidx.annotation.Nullable;
 
 import com.archdroid.R;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -30,12 +35,20 @@ public class TerminalView extends View {
     private final TerminalEmulator emulator;
     private final Paint textPaint;
     private final Paint backgroundPaint;
+    private final Paint runBackgroundPaint = new Paint();
+    private final Paint cursorPaint = new Paint();
+    private final StringBuilder cellText = new StringBuilder();
+    private final GlyphAtlas glyphAtlas = new GlyphAtlas();
+    private final RowCache rowCache = new RowCache(this::paintRow);
+    private final FrameScheduler frameScheduler = new FrameScheduler(this);
     private final GestureDetector gestureDetector;
     private final ScaleGestureDetector scaleGestureDetector;
     private final ExecutorService executor;
+    private final LinkDetector linkDetector = new LinkDetector();
 
     private TerminalSession session;
     private OnSessionChangeListener sessionChangeListener;
+    private OnLinkTapListener linkTapListener;
 
     private float textSize = 14f;
     private float lineSpacing = 2f;
@@ -45,10 +58,20 @@ public class TerminalView extends View {
     private int defaultForegroundColor = Color.WHITE;
     private int defaultBackgroundColor = Color.BLACK;
 
+    private FontConfig fonts = FontConfig.monospace();
+    private CellMetrics metrics;
+    // Columns of the frame being drawn, used when painting row strips
+    private int frameColumns;
+
     public interface OnSessionChangeListener {
         void onSessionChanged(TerminalSession session);
     }
 
+    public interface OnLinkTapListener {
+        /** Return true if the tap was handled; unhandled URLs are opened in a browser */
+        boolean onLinkTapped(LinkDetector.Link link);
+    }
+
     public TerminalView(Context context) {
         this(context, null);
     }
@@ -63,18 +86,27 @@ public class TerminalView extends View {
         emulator = new TerminalEmulator(80, 24);
         textPaint = new Paint();
         textPaint.setColor(defaultForegroundColor);
-        textPaint.setTextSize(textSize);
-        textPaint.setTypeface(Typeface.MONOSPACE);
         textPaint.setAntiAlias(true);
+        updateMetrics();
 
         backgroundPaint = new Paint();
         backgroundPaint.setColor(defaultBackgroundColor);
 
+        cursorPaint.setColor(Color.WHITE);
+        cursorPaint.setStyle(Paint.Style.STROKE);
+        cursorPaint.setStrokeWidth(2f);
+
         gestureDetector = new GestureDetector(context, new GestureListener());
         scaleGestureDetector = new ScaleGestureDetector(context, new ScaleListener());
 
         executor = Executors.newSingleThreadExecutor();
 
+        try {
+            emulator.enableScrollbackSpill(new File(context.getCacheDir(), "scrollback"));
+        } catch (IOException e) {
+            Log.w(TAG, "Scrollback spill unavailable, history limited to memory", e);
+        }
+
         setFocusable(true);
         setClickable(true);
 
@@ -103,6 +135,7 @@ public class TerminalView extends View {
                 Color.parseColor("#A4FFFF"), // Bright Cyan
                 Color.parseColor("#FFFFFF")  // Bright White
             );
+            emulator.setDefaultColors(defaultForegroundColor, defaultBackgroundColor);
         }
     }
 
@@ -110,13 +143,14 @@ public class TerminalView extends View {
         if (session != null) {
             session.close();
         }
+        emulator.resetInput();
 
         session = new TerminalSession(launchScript);
         session.setOutputListener(new TerminalSession.OutputListener() {
             @Override
-            public void onOutput(String data) {
-                emulator.write(data);
-                postInvalidate();
+            public void onOutput(byte[] data, int offset, int length) {
+                emulator.write(data, offset, length);
+                frameScheduler.onOutput(length);
             }
         });
 
@@ -252,6 +286,10 @@ public class TerminalView extends View {
             session.close();
             session = null;
         }
+        emulator.releaseScrollbackSpill();
+        glyphAtlas.release();
+        rowCache.invalidate();
+        frameScheduler.cancel();
         executor.shutdown();
     }
 
@@ -259,12 +297,47 @@ public class TerminalView extends View {
         this.sessionChangeListener = listener;
     }
 
+    public void setOnLinkTapListener(OnLinkTapListener listener) {
+        this.linkTapListener = listener;
+    }
+
+    /** Cap redraws caused by output, for example to save power; 0 follows the display */
+    public void setMaxFrameRate(int fps) {
+        frameScheduler.setMaxFramesPerSecond(fps);
+    }
+
     public void setTextSize(float size) {
         this.textSize = size;
-        textPaint.setTextSize(size);
+        updateMetrics();
+        resizeEmulator(getWidth(), getHeight());
+        invalidate();
+    }
+
+    /** Use the given fonts; metrics and cached glyphs are rebuilt once */
+    public void setFontConfig(FontConfig config) {
+        this.fonts = config;
+        updateMetrics();
+        resizeEmulator(getWidth(), getHeight());
         invalidate();
     }
 
+    /** Measure the cell for the current fonts and size; cached glyphs and rows are dropped */
+    private void updateMetrics() {
+        textPaint.setTypeface(fonts.getRegular());
+        textPaint.setTextSize(textSize);
+        metrics = CellMetrics.measure(textPaint, lineSpacing);
+        glyphAtlas.invalidate();
+        rowCache.invalidate();
+    }
+
+    private void resizeEmulator(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        emulator.resize(metrics.columnsIn(width - 2 * horizontalPadding),
+            metrics.rowsIn(height - 2 * verticalPadding));
+    }
+
     public float getTextSize() {
         return textSize;
     }
@@ -272,17 +345,7 @@ public class TerminalView extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-
-        float cellWidth = textPaint.measureText("M");
-        float cellHeight = textPaint.getTextSize() + lineSpacing;
-
-        int cols = (int) ((w - 2 * horizontalPadding) / cellWidth);
-        int rows = (int) ((h - 2 * verticalPadding) / cellHeight);
-
-        cols = Math.max(1, cols);
-        rows = Math.max(1, rows);
-
-        emulator.resize(cols, rows);
+        resizeEmulator(w, h);
     }
 
     @Override
@@ -292,63 +355,33 @@ public class TerminalView extends View {
         // Draw background
         canvas.drawRect(0, 0, getWidth(), getHeight(), backgroundPaint);
 
-        float cellWidth = textPaint.measureText("M");
-        float cellHeight = textPaint.getTextSize() + lineSpacing;
-
-        int cols = emulator.getWidth();
-        int rows = emulator.getHeight();
-
-        // Draw each character
-        for (int row = 0; row < rows; row++) {
-            float y = verticalPadding + (row + 1) * cellHeight - lineSpacing;
-
-            TerminalEmulator.TextLine line = emulator.getLine(row);
-            if (line == null) continue;
+        float cellWidth = metrics.cellWidth;
+        float cellHeight = metrics.cellHeight;
 
-            for (int col = 0; col < cols; col++) {
-                char ch = line.getChar(col);
-                if (ch == 0 || ch == ' ') continue;
+        // One consistent frame; output since the last frame is published once, here
+        ScreenSnapshot frame = emulator.getSnapshot();
+        int cols = frame.getWidth();
+        int rows = frame.getHeight();
+        // Only rows changed since the last frame are scanned
+        linkDetector.update(frame);
+        glyphAtlas.configure(fonts, textSize, metrics);
+        glyphAtlas.beginFrame();
 
-                float x = horizontalPadding + col * cellWidth;
-
-                // Get colors for this cell
-                int foregroundColor = line.getForeColor(col);
-                int backgroundColor = line.getBackColor(col);
-
-                // Draw background for this cell
-                Paint cellBgPaint = new Paint();
-                cellBgPaint.setColor(backgroundColor);
-                canvas.drawRect(
-                    x, verticalPadding + row * cellHeight,
-                    x + cellWidth, verticalPadding + (row + 1) * cellHeight,
-                    cellBgPaint
-                );
-
-                // Draw character
-                textPaint.setColor(foregroundColor);
-                if (line.isBold(col)) {
-                    textPaint.setFakeBoldText(true);
-                } else {
-                    textPaint.setFakeBoldText(false);
-                }
-                canvas.drawText(String.valueOf(ch), x, y, textPaint);
-            }
-        }
+        frameColumns = cols;
+        // Rows unchanged since the last frame are blitted from their cached strips
+        rowCache.configure(getWidth(), (int) cellHeight, backgroundPaint.getColor());
+        rowCache.draw(canvas, frame, 0, verticalPadding, cellHeight);
 
         // Draw cursor
-        if (emulator.getCursorRow() >= 0 && emulator.getCursorRow() < rows &&
-            emulator.getCursorCol() >= 0 && emulator.getCursorCol() < cols) {
+        if (frame.isCursorVisible() && frame.getScrollOffset() == 0
+                && frame.getCursorRow() < rows && frame.getCursorCol() < cols) {
 
-            int cursorRow = emulator.getCursorRow();
-            int cursorCol = emulator.getCursorCol();
+            int cursorRow = frame.getCursorRow();
+            int cursorCol = frame.getCursorCol();
 
             float cursorX = horizontalPadding + cursorCol * cellWidth;
             float cursorY = verticalPadding + cursorRow * cellHeight;
 
-            Paint cursorPaint = new Paint();
-            cursorPaint.setColor(Color.WHITE);
-            cursorPaint.setStyle(Paint.Style.STROKE);
-            cursorPaint.setStrokeWidth(2f);
             canvas.drawRect(
                 cursorX, cursorY,
                 cursorX + cellWidth, cursorY + cellHeight,
@@ -357,6 +390,71 @@ public class TerminalView extends View {
         }
     }
 
+    /** Paint one row onto its strip in runs of identical style */
+    private void paintRow(Canvas canvas, TerminalEmulator.TextLine line) {
+        int col = 0;
+        while (col < frameColumns) {
+            int style = line.getStyle(col);
+            int end = col + 1;
+            while (end < frameColumns && line.getStyle(end) == style) {
+                end++;
+            }
+            drawRun(canvas, line, col, end, 0);
+            col = end;
+        }
+    }
+
+    /** Draw cells [from, to) of a row, which all share one style */
+    private void drawRun(Canvas canvas, TerminalEmulator.TextLine line, int from, int to,
+                         float top) {
+        float cellWidth = metrics.cellWidth;
+        int foregroundColor = line.getForeColor(from);
+        int backgroundColor = line.getBackColor(from);
+        if (line.isReverse(from)) {
+            int swap = foregroundColor;
+            foregroundColor = backgroundColor;
+            backgroundColor = swap;
+        }
+
+        float x = horizontalPadding + from * cellWidth;
+        if (backgroundColor != backgroundPaint.getColor()) {
+            runBackgroundPaint.setColor(backgroundColor);
+            canvas.drawRect(x, top, horizontalPadding + to * cellWidth, top + metrics.cellHeight,
+                runBackgroundPaint);
+        }
+
+        boolean bold = line.isBold(from);
+        boolean italic = line.isItalic(from);
+        for (int col = from; col < to; col++) {
+            int codePoint = line.getCodePoint(col);
+            if (codePoint == ' ' || codePoint == 0
+                    || codePoint == TerminalEmulator.TextLine.WIDE_TAIL) {
+                continue;
+            }
+            float cellX = horizontalPadding + col * cellWidth;
+            // Cached glyphs are blitted; clusters with combining marks and color
+            // emoji are laid out as text
+            if (line.isCluster(col) || !glyphAtlas.draw(canvas, codePoint, bold, italic,
+                    cellX, top, foregroundColor)) {
+                textPaint.setColor(foregroundColor);
+                textPaint.setTypeface(fonts.getTypeface(bold, italic));
+                textPaint.setFakeBoldText(fonts.needsFakeBold(bold, italic));
+                textPaint.setTextSkewX(fonts.italicSkew(bold, italic));
+                cellText.setLength(0);
+                line.appendCell(cellText, col);
+                canvas.drawText(cellText, 0, cellText.length(), cellX, top + metrics.baseline,
+                    textPaint);
+            }
+        }
+
+        if (line.isUnderline(from)) {
+            float underline = top + metrics.underlinePosition;
+            runBackgroundPaint.setColor(foregroundColor);
+            canvas.drawRect(x, underline, horizontalPadding + to * cellWidth,
+                underline + metrics.underlineThickness, runBackgroundPaint);
+        }
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         scaleGestureDetector.onTouchEvent(event);
@@ -365,16 +463,35 @@ public class TerminalView extends View {
     }
 
     private void handleTap(float x, float y) {
-        float cellWidth = textPaint.measureText("M");
-        float cellHeight = textPaint.getTextSize() + lineSpacing;
+        int col = (int) ((x - horizontalPadding) / metrics.cellWidth);
+        int row = (int) ((y - verticalPadding) / metrics.cellHeight);
 
-        int col = (int) ((x - horizontalPadding) / cellWidth);
-        int row = (int) ((y - verticalPadding) / cellHeight);
+        linkDetector.update(emulator.getSnapshot());
+        LinkDetector.Link link = linkDetector.findLink(row, col);
+        if (link != null && openLink(link)) {
+            return;
+        }
 
         emulator.moveCursorTo(row, col);
         invalidate();
     }
 
+    private boolean openLink(LinkDetector.Link link) {
+        if (linkTapListener != null && linkTapListener.onLinkTapped(link)) {
+            return true;
+        }
+        if (!link.isUrl()) {
+            return false;
+        }
+        try {
+            getContext().startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse(link.getText())));
+            return true;
+        } catch (ActivityNotFoundException e) {
+            Log.w(TAG, "No app to open " + link.getText(), e);
+            return false;
+        }
+    }
+
     private void handleScroll(float distanceY) {
         emulator.scroll((int) (-distanceY / 20));
         invalidate();
@@ -409,18 +526,13 @@ public class TerminalView extends View {
     private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
         @Override
         public boolean onScale(ScaleGestureDetector detector) {
-            textSize *= detector.getScaleFactor();
-            textSize = Math.max(8f, Math.min(32f, textSize));
-            textPaint.setTextSize(textSize);
-
-            // Recalculate terminal size
-            float cellWidth = textPaint.measureText("M");
-            float cellHeight = textPaint.getTextSize() + lineSpacing;
-
-            int cols = (int) ((getWidth() - 2 * horizontalPadding) / cellWidth);
-            int rows = (int) ((getHeight() - 2 * verticalPadding) / cellHeight);
-
-            emulator.resize(Math.max(1, cols), Math.max(1, rows));
+            float size = Math.max(8f, Math.min(32f, textSize * detector.getScaleFactor()));
+            if (size == textSize) {
+                return true;
+            }
+            textSize = size;
+            updateMetrics();
+            resizeEmulator(getWidth(), getHeight());
 
             invalidate();
             return true;
@@ -0,0 +1,66 @@
+package com.archdroid.terminal;
+
+/**
+ * Streaming UTF-8 decoder feeding code points straight into the parser
+ * State is kept between {@link #decode} calls, so a multi-byte character split
+ * across two reads from the process decodes correctly. Malformed input (stray
+ * continuation bytes, overlong forms, surrogates, truncated sequences) becomes
+ * U+FFFD. Nothing is allocated per call.
+ */
+class Utf8Decoder {
+
+    static final int REPLACEMENT = 0xFFFD;
+
+    private int codePoint = 0;
+    // Continuation bytes still expected for the current sequence
+    private int needed = 0;
+    // Smallest code point the current sequence may encode, to reject overlong forms
+    private int minimum = 0;
+
+    void decode(byte[] data, int offset, int length, TerminalParser parser) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = data[i] & 0xFF;
+            if (needed == 0) {
+                if (b < 0x80) {
+                    parser.feed(b);
+                } else if (b >= 0xC2 && b <= 0xDF) {
+                    start(b & 0x1F, 1, 0x80);
+                } else if (b >= 0xE0 && b <= 0xEF) {
+                    start(b & 0x0F, 2, 0x800);
+                } else if (b >= 0xF0 && b <= 0xF4) {
+                    start(b & 0x07, 3, 0x10000);
+                } else {
+                    parser.feed(REPLACEMENT);
+                }
+            } else if ((b & 0xC0) == 0x80) {
+                codePoint = (codePoint << 6) | (b & 0x3F);
+                if (--needed == 0) {
+                    boolean valid = codePoint >= minimum && codePoint <= 0x10FFFF
+                        && (codePoint < 0xD800 || codePoint > 0xDFFF);
+                    parser.feed(valid ? codePoint : REPLACEMENT);
+                }
+            } else {
+                // Truncated sequence: replace it and handle this byte afresh
+                needed = 0;
+                parser.feed(REPLACEMENT);
+                i--;
+            }
+        }
+    }
+
+    /** No multi-byte sequence is in progress */
+    boolean isIdle() {
+        return needed == 0;
+    }
+
+    void reset() {
+        needed = 0;
+    }
+
+    private void start(int bits, int continuationBytes, int minimumCodePoint) {
+        codePoint = bits;
+        needed = continuationBytes;
+        minimum = minimumCodePoint;
+    }
+}
@@ -7,6 +7,11 @@ import android.graphics.Color;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
 /**
  * Unit tests for TerminalEmulator
  */
@@ -122,4 +127,689 @@ public class TerminalEmulatorTest {
         TerminalEmulator.TextLine line = emulator.getLine(100);
         assertNotNull(line);
     }
+
+    @Test
+    public void testCellAttributes() {
+        emulator.write("\u001B[1;4mB\u001B[0mN");
+        TerminalEmulator.TextLine line = emulator.getLine(0);
+        assertTrue(line.isBold(0));
+        assertTrue(line.isUnderline(0));
+        assertFalse(line.isBold(1));
+        assertFalse(line.isUnderline(1));
+        assertEquals('N', line.getChar(1));
+    }
+
+    @Test
+    public void testScrollbackLineNumbers() {
+        for (int i = 0; i < 30; i++) {
+            emulator.write("\r\n" + (char) ('a' + i));
+        }
+        assertEquals(30, emulator.getScrollbackSize() + emulator.getCursorRow());
+        long first = emulator.getFirstLineNumber();
+        assertEquals(0, first);
+        assertEquals('a', emulator.getLineAt(first + 1).getChar(0));
+
+        emulator.scroll(-7);
+        assertEquals(7, emulator.getScrollOffset());
+        assertEquals('a', emulator.getLine(1).getChar(0));
+        emulator.scroll(100);
+        assertEquals(0, emulator.getScrollOffset());
+    }
+
+    @Test
+    public void testCompressedScrollback() {
+        TerminalEmulator large = new TerminalEmulator(80, 24, 100000);
+        for (int i = 0; i < 5000; i++) {
+            large.write("\r\nline " + i);
+        }
+        assertEquals(5000 + 1 - 24, large.getScrollbackSize());
+        assertEquals(0, large.getFirstLineNumber());
+
+        // Line 11 holds "line 10" and has long since left the uncompressed window
+        TerminalEmulator.TextLine archived = large.getLineAt(11);
+        assertNotNull(archived);
+        assertEquals('l', archived.getChar(0));
+        assertEquals('1', archived.getChar(5));
+        assertEquals('0', archived.getChar(6));
+        assertEquals(80, archived.size());
+
+        large.setMaxScrollbackLines(1000);
+        assertNull(large.getLineAt(11));
+    }
+
+    @Test
+    public void testArchiveCompressionRatio() {
+        StyleTable styles = new StyleTable();
+        ScrollbackArchive archive = new ScrollbackArchive(100000, styles);
+        for (int i = 0; i < 10000; i++) {
+            TerminalEmulator.TextLine line = new TerminalEmulator.TextLine(styles, 80);
+            String text = "[" + i + "/10000] Compiling module_" + (i % 97) + ".o";
+            for (int col = 0; col < text.length(); col++) {
+                line.setChar(col, text.charAt(col));
+            }
+            archive.append(i, line);
+        }
+        // Packed rows hold two ints per cell; frozen blocks must be a small fraction of that
+        long packedBytes = 10000L * 80 * 8;
+        assertTrue(archive.compressedBytes() * 20 < packedBytes);
+        assertEquals('C', archive.get(42).getChar(11));
+    }
+
+    @Test
+    public void testScrollbackSpill() throws Exception {
+        File dir = Files.createTempDirectory("spill").toFile();
+        TerminalEmulator spilling = new TerminalEmulator(80, 24, 2000);
+        spilling.enableScrollbackSpill(dir);
+        for (int i = 0; i < 5000; i++) {
+            spilling.write("\r\nline " + i);
+        }
+        assertEquals(0, spilling.getFirstLineNumber());
+        assertEquals(5000 + 1 - 24, spilling.getScrollbackSize());
+
+        TerminalEmulator.TextLine spilled = spilling.getLineAt(11);
+        assertNotNull(spilled);
+        assertEquals('1', spilled.getChar(5));
+        assertEquals('0', spilled.getChar(6));
+
+        // Spilled blocks stay deflated on disk, index bits included: well under a byte per cell
+        long spilledCells = (spilling.getScrollbackSize() - 2000) * 80L;
+        long diskBytes = diskBytes(dir);
+        assertTrue(diskBytes * 4 < spilledCells);
+
+        spilling.releaseScrollbackSpill();
+        assertNull(spilling.getLineAt(11));
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testScrollbackSpillLimit() throws Exception {
+        File dir = Files.createTempDirectory("spill").toFile();
+        TerminalEmulator spilling = new TerminalEmulator(80, 24, 2000);
+        spilling.enableScrollbackSpill(dir, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            spilling.write("\r\nline " + i);
+        }
+        spilling.scroll(-100000);
+        for (int i = 100; i < 20000; i++) {
+            spilling.write("\r\nline " + i);
+        }
+        // Past the limit the oldest spilled lines go, newer spilled history stays
+        assertNull(spilling.getLineAt(11));
+        long first = spilling.getFirstLineNumber();
+        assertTrue(first > 10);
+        assertTrue(spilling.getScrollbackSize() > 2000 + 1024);
+        TerminalEmulator.TextLine oldest = spilling.getLineAt(first);
+        assertNotNull(oldest);
+        String expected = "line " + (first - 1);
+        assertEquals(expected, lineText(oldest, 0, expected.length()));
+        assertEquals(spilling.getScrollbackSize(), spilling.getScrollOffset());
+        long diskBytes = diskBytes(dir);
+        assertTrue(diskBytes <= 64 * 1024);
+        spilling.releaseScrollbackSpill();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testScrollbackSpillSweepsStaleSessions() throws Exception {
+        File dir = Files.createTempDirectory("spill").toFile();
+        TerminalEmulator live = new TerminalEmulator(80, 24, 2000);
+        live.enableScrollbackSpill(dir);
+
+        // A session killed before releasing its spill leaves an unlocked directory
+        File stale = new File(dir, "session-killed");
+        assertTrue(stale.mkdir());
+        assertTrue(new File(stale, "lock").createNewFile());
+        assertTrue(new File(stale, "scrollback1.dat").createNewFile());
+
+        TerminalEmulator next = new TerminalEmulator(80, 24, 2000);
+        next.enableScrollbackSpill(dir);
+        assertFalse(stale.exists());
+        assertEquals(2, dir.listFiles().length);
+
+        live.releaseScrollbackSpill();
+        next.releaseScrollbackSpill();
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testEscapeSequenceSplitAcrossWrites() {
+        emulator.write("\u001B[");
+        emulator.write("1");
+        emulator.write("0;2");
+        emulator.write("0HX");
+        assertEquals(9, emulator.getCursorRow());
+        assertEquals(20, emulator.getCursorCol());
+        assertEquals('X', emulator.getLine(9).getChar(19));
+    }
+
+    @Test
+    public void testResetInputDropsPartialSequence() {
+        emulator.write("\u001B[1");
+        emulator.resetInput();
+        emulator.write("A");
+        assertEquals('A', emulator.getLine(0).getChar(0));
+        assertEquals(1, emulator.getCursorCol());
+
+        // The lead byte of a cut-off character does not turn new text into U+FFFD
+        emulator.write(new byte[]{(byte) 0xE4, (byte) 0xB8}, 0, 2);
+        emulator.resetInput();
+        emulator.write(new byte[]{'B'}, 0, 1);
+        assertEquals('B', emulator.getLine(0).getChar(1));
+    }
+
+    @Test
+    public void testOscTitleIsNotPrinted() {
+        emulator.write("\u001B]0;user@archdroid\u0007$ ");
+        assertEquals("user@archdroid", emulator.getTitle());
+        assertEquals('$', emulator.getLine(0).getChar(0));
+        assertEquals(2, emulator.getCursorCol());
+    }
+
+    @Test
+    public void testInternedStyles() {
+        emulator.write("\u001B[1;31mA\u001B[0mB\u001B[31;1mC");
+        TerminalEmulator.TextLine line = emulator.getLine(0);
+        assertEquals(line.getStyle(0), line.getStyle(2));
+        assertNotEquals(line.getStyle(0), line.getStyle(1));
+        assertEquals(StyleTable.DEFAULT_STYLE, line.getStyle(1));
+        assertTrue(line.isBold(2));
+    }
+
+    @Test
+    public void testStyleIdsAreReclaimed() {
+        // More distinct colors than there are style IDs, one per cell
+        TerminalEmulator large = new TerminalEmulator(40, 10, 5000);
+        int cells = 100_000;
+        StringBuilder chunk = new StringBuilder();
+        for (int k = 0; k < cells; k++) {
+            chunk.append("\u001B[38;2;").append(k & 0xFF).append(';').append((k >> 8) & 0xFF)
+                .append(';').append((k >> 16) & 0xFF).append("mx");
+            if (k % 40 == 39) {
+                large.write(chunk.toString());
+                chunk.setLength(0);
+            }
+        }
+
+        for (int k : new int[]{0, 1234, 40_000, 70_000, cells - 41, cells - 1}) {
+            int expected = 0xFF000000 | ((k & 0xFF) << 16) | (k & 0xFF00) | ((k >> 16) & 0xFF);
+            TerminalEmulator.TextLine line = large.getLineAt(k / 40);
+            assertEquals("cell " + k, expected, line.getForeColor(k % 40));
+        }
+    }
+
+    @Test
+    public void testDamageShiftsWithScroll() {
+        ScreenDamage damage = new ScreenDamage();
+        damage.setRowCount(24);
+        assertTrue(damage.isEmpty());
+
+        // Two scrolls move the content up by two rows
+        damage.markRow(0);
+        damage.markRow(5);
+        damage.scrollUp();
+        damage.scrollUp();
+        assertEquals(2, damage.getScrollDelta());
+        assertTrue(damage.isRowDirty(3));
+        assertFalse(damage.isRowDirty(5));
+        assertTrue(damage.isRowDirty(22));
+        assertTrue(damage.isRowDirty(23));
+        assertTrue(damage.isScrolledOffRowDirty(0));
+        assertFalse(damage.isScrolledOffRowDirty(1));
+
+        damage.clear();
+        assertTrue(damage.isEmpty());
+    }
+
+    @Test
+    public void testDamageTracking() {
+        ScreenDamage damage = new ScreenDamage();
+        emulator.fetchDamage(damage);
+        assertTrue(damage.isFullRedraw());
+
+        emulator.moveCursorTo(5, 0);
+        emulator.fetchDamage(damage);
+        // A one-character echo marks exactly one row
+        emulator.write("x");
+        emulator.fetchDamage(damage);
+        assertFalse(damage.isFullRedraw());
+        assertEquals(0, damage.getScrollDelta());
+        for (int row = 0; row < damage.getRowCount(); row++) {
+            assertEquals(row == 5, damage.isRowDirty(row));
+        }
+        assertTrue(damage.isCursorMoved());
+        assertEquals(0, damage.getPreviousCursorCol());
+        assertEquals(1, damage.getCursorCol());
+
+        emulator.fetchDamage(damage);
+        assertTrue(damage.isEmpty());
+
+        // Two line feeds at the bottom move the content up by two rows
+        emulator.moveCursorTo(23, 0);
+        emulator.write("\n\n");
+        emulator.moveCursorTo(5, 0);
+        emulator.write("y");
+        emulator.fetchDamage(damage);
+        assertEquals(2, damage.getScrollDelta());
+        assertTrue(damage.isRowDirty(5));
+        assertTrue(damage.isRowDirty(22));
+        assertTrue(damage.isRowDirty(23));
+        assertFalse(damage.isRowDirty(3));
+    }
+
+    @Test
+    public void testScrollRegion() {
+        for (int row = 0; row < 24; row++) {
+            emulator.moveCursorTo(row, 0);
+            emulator.write(String.valueOf((char) ('A' + row)));
+        }
+        // Region rows 2..5 (1-based 3;6), then line feed at its bottom
+        emulator.write("\u001B[3;6r\u001B[6;1H\n");
+        assertEquals('A', emulator.getLine(0).getChar(0));
+        assertEquals('B', emulator.getLine(1).getChar(0));
+        assertEquals('D', emulator.getLine(2).getChar(0));
+        assertEquals('F', emulator.getLine(4).getChar(0));
+        assertEquals(' ', emulator.getLine(5).getChar(0));
+        assertEquals('G', emulator.getLine(6).getChar(0));
+        assertEquals(0, emulator.getScrollbackSize());
+
+        // Reverse index at the region top scrolls the region back down
+        emulator.write("\u001B[3;1H\u001BM");
+        assertEquals(' ', emulator.getLine(2).getChar(0));
+        assertEquals('D', emulator.getLine(3).getChar(0));
+        assertEquals('F', emulator.getLine(5).getChar(0));
+    }
+
+    @Test
+    public void testInsertDeleteLines() {
+        for (int row = 0; row < 24; row++) {
+            emulator.moveCursorTo(row, 0);
+            emulator.write(String.valueOf((char) ('A' + row)));
+        }
+        emulator.write("\u001B[2;1H\u001B[2L");
+        assertEquals('A', emulator.getLine(0).getChar(0));
+        assertEquals(' ', emulator.getLine(1).getChar(0));
+        assertEquals(' ', emulator.getLine(2).getChar(0));
+        assertEquals('B', emulator.getLine(3).getChar(0));
+        assertEquals('V', emulator.getLine(23).getChar(0));
+
+        emulator.write("\u001B[3M");
+        assertEquals('A', emulator.getLine(0).getChar(0));
+        assertEquals('C', emulator.getLine(1).getChar(0));
+        assertEquals(' ', emulator.getLine(23).getChar(0));
+    }
+
+    @Test
+    public void testDeleteLineAtTopDiscardsLine() {
+        emulator.write("a\nb\nc\nd\ne");
+        emulator.write("\u001B[1;1H\u001B[M");
+        assertEquals(0, emulator.getScrollbackSize());
+        assertEquals('b', emulator.getLine(0).getChar(0));
+        assertEquals('e', emulator.getLine(3).getChar(0));
+        assertEquals(' ', emulator.getLine(23).getChar(0));
+    }
+
+    @Test
+    public void testAlternateScreen() {
+        emulator.write("shell prompt");
+        emulator.moveCursorTo(0, 5);
+        emulator.write("\u001B[?1049h");
+        assertEquals(' ', emulator.getLine(0).getChar(0));
+
+        // Scrolling on the alternate screen never reaches the scrollback
+        for (int i = 0; i < 30; i++) {
+            emulator.write("row\n");
+        }
+        assertEquals(0, emulator.getScrollbackSize());
+
+        emulator.write("\u001B[?1049l");
+        assertEquals('s', emulator.getLine(0).getChar(0));
+        assertEquals('p', emulator.getLine(0).getChar(6));
+        assertEquals(0, emulator.getCursorRow());
+        assertEquals(5, emulator.getCursorCol());
+    }
+
+    @Test
+    public void testReflowOnResize() {
+        emulator = new TerminalEmulator(10, 5);
+        emulator.write("abcdefghijklmno");
+        assertTrue(emulator.getLine(0).isWrapped());
+        assertEquals('k', emulator.getLine(1).getChar(0));
+
+        emulator.resize(20, 5);
+        assertEquals('o', emulator.getLine(0).getChar(14));
+        assertEquals(' ', emulator.getLine(1).getChar(0));
+        assertEquals(0, emulator.getCursorRow());
+        assertEquals(15, emulator.getCursorCol());
+
+        emulator.resize(4, 5);
+        assertEquals('m', emulator.getLine(3).getChar(0));
+        assertEquals(3, emulator.getCursorRow());
+        assertEquals(3, emulator.getCursorCol());
+    }
+
+    @Test
+    public void testLazyHistoryReflow() {
+        emulator = new TerminalEmulator(10, 5);
+        // Far more 15 character lines than the hot history holds, so the
+        // oldest are in the archive wrapped at width 10
+        for (int i = 0; i < 1500; i++) {
+            emulator.write(String.format("%04dabcdefghijk\n", i));
+        }
+        emulator.resize(20, 5);
+        int scrollback = emulator.getScrollbackSize();
+
+        // Scroll to the top: the archived lines are rewrapped as they come into view
+        emulator.scroll(-scrollback);
+        String first = lineText(emulator.getLine(0), 0, 4);
+        String second = lineText(emulator.getLine(1), 0, 4);
+        assertEquals(Integer.parseInt(first) + 1, Integer.parseInt(second));
+        assertEquals('k', emulator.getLine(0).getChar(14));
+        assertEquals(' ', emulator.getLine(0).getChar(15));
+        assertTrue(emulator.getScrollbackSize() < scrollback);
+    }
+
+    @Test
+    public void testUtf8SplitAcrossWrites() {
+        byte[] bytes = "a\u00e9\u20ac".getBytes(StandardCharsets.UTF_8);
+        // Split inside the three byte euro sign
+        emulator.write(bytes, 0, bytes.length - 1);
+        emulator.write(bytes, bytes.length - 1, 1);
+        assertEquals('\u00e9', emulator.getLine(0).getChar(1));
+        assertEquals('\u20ac', emulator.getLine(0).getChar(2));
+        assertEquals(3, emulator.getCursorCol());
+
+        // A truncated sequence becomes one replacement character
+        emulator.write(new byte[]{(byte) 0xE2, (byte) 0x82, 'x'}, 0, 3);
+        assertEquals('\uFFFD', emulator.getLine(0).getChar(3));
+        assertEquals('x', emulator.getLine(0).getChar(4));
+    }
+
+    @Test
+    public void testWideAndCombiningCharacters() {
+        // Astral code point, double-width CJK, e + combining acute
+        emulator.write("\uD83D\uDE00\u4E2De\u0301x");
+        TerminalEmulator.TextLine line = emulator.getLine(0);
+        assertEquals(0x1F600, line.getCodePoint(0));
+        assertTrue(line.isWide(0));
+        assertEquals(TerminalEmulator.TextLine.WIDE_TAIL, line.getCodePoint(1));
+        assertEquals(0x4E2D, line.getCodePoint(2));
+        assertEquals('e', line.getCodePoint(4));
+        StringBuilder cell = new StringBuilder();
+        line.appendCell(cell, 4);
+        assertEquals("e\u0301", cell.toString());
+        assertEquals('x', line.getCodePoint(5));
+        assertEquals(6, emulator.getCursorCol());
+
+        // A wide character that does not fit in the last column wraps whole
+        emulator.moveCursorTo(1, 79);
+        emulator.write("\u4E2D");
+        assertEquals(' ', emulator.getLine(1).getCodePoint(79));
+        assertEquals(0x4E2D, emulator.getLine(2).getCodePoint(0));
+    }
+
+    @Test
+    public void testColorEmojiClassification() {
+        assertTrue(CharWidth.isColorEmoji(0x1F600));
+        assertTrue(CharWidth.isColorEmoji(0x2B50));
+        assertTrue(CharWidth.isColorEmoji(0x1F1FA));
+        assertFalse(CharWidth.isColorEmoji(0x4E2D));
+        assertFalse(CharWidth.isColorEmoji(0x2500));
+        assertFalse(CharWidth.isColorEmoji('A'));
+    }
+
+    @Test
+    public void testTruecolorSgr() {
+        emulator.write("\u001B[38;2;10;20;30;48;5;196mA"
+            + "\u001B[38:2::1:2:3mB\u001B[38:5:21;1mC\u001B[31mD");
+        TerminalEmulator.TextLine line = emulator.getLine(0);
+        assertEquals(0xFF0A141E, line.getForeColor(0));
+        assertEquals(0xFFFF0000, line.getBackColor(0));
+        assertEquals(0xFF010203, line.getForeColor(1));
+        assertEquals(0xFF0000FF, line.getForeColor(2));
+        assertTrue(line.isBold(2));
+
+        // Palette colors are resolved when read, so a new theme recolors them
+        int[] palette = new int[16];
+        palette[1] = 0xFF123456;
+        emulator.setColorPalette(palette);
+        assertEquals(0xFF123456, line.getForeColor(3));
+        assertEquals(0xFF0A141E, line.getForeColor(0));
+    }
+
+    @Test
+    public void testPrintableRunWraps() {
+        emulator = new TerminalEmulator(10, 5);
+        byte[] bytes = "\u001B[1m0123456789abcde\u001B[0mf".getBytes(StandardCharsets.UTF_8);
+        emulator.write(bytes, 0, bytes.length);
+        assertEquals("0123456789", lineText(emulator.getLine(0), 0, 10));
+        assertTrue(emulator.getLine(0).isWrapped());
+        assertEquals("abcdef", lineText(emulator.getLine(1), 0, 6));
+        assertTrue(emulator.getLine(1).isBold(4));
+        assertFalse(emulator.getLine(1).isBold(5));
+        assertEquals(1, emulator.getCursorRow());
+        assertEquals(6, emulator.getCursorCol());
+    }
+
+    @Test
+    public void testSnapshotSharesUnchangedRows() {
+        emulator.write("first\nsecond");
+        ScreenSnapshot before = emulator.getSnapshot();
+        assertEquals('s', before.getRow(1).getChar(0));
+
+        emulator.write("!");
+        ScreenSnapshot after = emulator.getSnapshot();
+        assertTrue(after.getVersion() > before.getVersion());
+        assertSame(before.getRow(0), after.getRow(0));
+        assertEquals(before.getRowVersion(0), after.getRowVersion(0));
+        assertNotSame(before.getRow(1), after.getRow(1));
+        assertEquals(' ', before.getRow(1).getChar(6));
+        assertEquals('!', after.getRow(1).getChar(6));
+        assertEquals(7, after.getCursorCol());
+
+        emulator.write("\u001B[?25l");
+        assertFalse(emulator.getSnapshot().isCursorVisible());
+    }
+
+    @Test
+    public void testSnapshotPublishedOncePerFrame() {
+        emulator = new TerminalEmulator(10, 5);
+        emulator.write("top\r\n");
+        ScreenSnapshot before = emulator.getSnapshot();
+
+        // Many writes between two frames make one new snapshot
+        for (int i = 0; i < 3; i++) {
+            emulator.write("line " + i + "\r\n");
+        }
+        ScreenSnapshot after = emulator.getSnapshot();
+        assertEquals(before.getVersion() + 1, after.getVersion());
+        assertSame(after, emulator.getSnapshot());
+        assertSame(before.getRow(0), after.getRow(0));
+        assertEquals("line 2", lineText(after.getRow(3), 0, 6));
+    }
+
+    @Test
+    public void testHistoryScrollSharesRows() {
+        emulator = new TerminalEmulator(10, 5);
+        for (int i = 0; i < 50; i++) {
+            emulator.write("line " + i + "\r\n");
+        }
+        ScreenSnapshot live = emulator.getSnapshot();
+
+        // Scrolling back moves rows down; only the exposed rows are new copies
+        emulator.scroll(-2);
+        ScreenSnapshot back = emulator.getSnapshot();
+        assertEquals(2, back.getScrollOffset());
+        assertSame(live.getRow(0), back.getRow(2));
+        assertSame(live.getRow(2), back.getRow(4));
+        assertEquals("line 44", lineText(back.getRow(0), 0, 7));
+
+        emulator.scroll(1);
+        ScreenSnapshot forward = emulator.getSnapshot();
+        assertSame(back.getRow(1), forward.getRow(0));
+        assertSame(back.getRow(4), forward.getRow(3));
+        assertEquals("line 49", lineText(forward.getRow(4), 0, 7));
+    }
+
+    @Test
+    public void testOutputWhileScrolledBackSharesRows() {
+        emulator = new TerminalEmulator(10, 5);
+        for (int i = 0; i < 50; i++) {
+            emulator.write("line " + i + "\r\n");
+        }
+        emulator.scroll(-2);
+        ScreenSnapshot back = emulator.getSnapshot();
+
+        // Output below the viewport and a new line keep every row in view
+        emulator.write("x\r\nmore");
+        ScreenSnapshot pinned = emulator.getSnapshot();
+        assertEquals(3, pinned.getScrollOffset());
+        for (int row = 0; row < 5; row++) {
+            assertSame(back.getRow(row), pinned.getRow(row));
+        }
+
+        // Only the visible screen row that changed is copied
+        emulator.write("\u001B[1;1HZ");
+        ScreenSnapshot edited = emulator.getSnapshot();
+        assertEquals("Zine 47", lineText(edited.getRow(3), 0, 7));
+        assertNotSame(pinned.getRow(3), edited.getRow(3));
+        assertSame(pinned.getRow(2), edited.getRow(2));
+        assertSame(pinned.getRow(4), edited.getRow(4));
+
+        // A row changed right before it scrolls into history is copied too
+        emulator.write("\u001B[1;1HY\u001B[5;1H\n");
+        ScreenSnapshot scrolled = emulator.getSnapshot();
+        assertEquals(4, scrolled.getScrollOffset());
+        assertEquals("Yine 47", lineText(scrolled.getRow(3), 0, 7));
+        assertSame(edited.getRow(2), scrolled.getRow(2));
+        assertSame(edited.getRow(4), scrolled.getRow(4));
+    }
+
+    @Test
+    public void testSearchHistory() {
+        for (int i = 0; i < 3000; i++) {
+            emulator.write(i == 42 ? "needle In a haystack\n" : "line " + i + "\n");
+        }
+        emulator.write("another NEEDLE");
+
+        List<SearchMatch> matches = emulator.search("needle", true, 10);
+        assertEquals(2, matches.size());
+        SearchMatch archived = matches.get(0);
+        assertEquals(0, archived.getColumn());
+        assertEquals(6, archived.getLength());
+        assertEquals('n', emulator.getLineAt(archived.getLineNumber()).getChar(0));
+        assertEquals(8, matches.get(1).getColumn());
+
+        assertEquals(1, emulator.search("needle", false, 10).size());
+        assertEquals(1, emulator.search("line 2", false, 1).size());
+        assertTrue(emulator.search("no such text", true, 10).isEmpty());
+    }
+
+    @Test
+    public void testSearchAcrossWraps() throws Exception {
+        File dir = Files.createTempDirectory("spill").toFile();
+        TerminalEmulator narrow = new TerminalEmulator(20, 5, 2000);
+        narrow.enableScrollbackSpill(dir);
+        for (int i = 0; i < 5000; i++) {
+            // Spilled, archived and hot history each get a hit split by the wrap
+            boolean hit = i == 10 || i == 3500 || i == 4900;
+            narrow.write((hit ? "aaaaaaaaaaaaaaaaaNeedle" : "line " + i) + "\r\n");
+        }
+
+        List<SearchMatch> matches = narrow.search("needle", true, 10);
+        assertEquals(3, matches.size());
+        assertTrue(matches.get(0).getLineNumber() < narrow.getFirstLineNumber() + 100);
+        for (SearchMatch match : matches) {
+            assertEquals(17, match.getColumn());
+            assertEquals(6, match.getLength());
+            assertEquals(match.getLineNumber() + 1, match.getEndLineNumber());
+            assertEquals(3, match.getEndColumn());
+            assertEquals('N', narrow.getLineAt(match.getLineNumber()).getChar(17));
+            assertEquals('d', narrow.getLineAt(match.getEndLineNumber()).getChar(0));
+        }
+        assertEquals(1, narrow.search("line 4999", false, 10).size());
+        narrow.releaseScrollbackSpill();
+    }
+
+    @Test
+    public void testRegexSearch() {
+        emulator = new TerminalEmulator(10, 5);
+        for (int i = 0; i < 2000; i++) {
+            emulator.write(i == 7 ? "at Foo.java:123\n" : "ok " + i + "\n");
+        }
+        final List<SearchMatch> matches = new java.util.ArrayList<>();
+        final boolean[] finished = new boolean[1];
+        RegexSearch search = new RegexSearch(emulator,
+            java.util.regex.Pattern.compile("\\w+\\.java:\\d+"), 10,
+            new RegexSearch.Listener() {
+                @Override
+                public void onMatches(List<SearchMatch> batch) {
+                    matches.addAll(batch);
+                }
+
+                @Override
+                public void onFinished(boolean cancelled) {
+                    finished[0] = !cancelled;
+                }
+            });
+        // Run on the calling thread
+        search.start(Runnable::run);
+
+        assertTrue(finished[0]);
+        assertEquals(1, matches.size());
+        SearchMatch match = matches.get(0);
+        // The hit spans the soft wrap at column 10
+        assertEquals(3, match.getColumn());
+        assertEquals(12, match.getLength());
+        assertEquals(match.getLineNumber() + 1, match.getEndLineNumber());
+        assertEquals(5, match.getEndColumn());
+        assertEquals('F', emulator.getLineAt(match.getLineNumber()).getChar(3));
+    }
+
+    @Test
+    public void testLinkDetection() {
+        emulator = new TerminalEmulator(20, 4);
+        emulator.write("see https://example.org/a(b). ok\r\n");
+        emulator.write("at src/Foo.c:42:7\r\n");
+
+        LinkDetector detector = new LinkDetector();
+        detector.update(emulator.getSnapshot());
+
+        // The URL wraps onto the second row and drops the trailing period
+        LinkDetector.Link url = detector.findLink(0, 4);
+        assertNotNull(url);
+        assertTrue(url.isUrl());
+        assertEquals("https://example.org/a(b)", url.getText());
+        assertSame(url, detector.findLink(1, 7));
+        assertNull(detector.findLink(1, 8));
+
+        LinkDetector.Link file = detector.findLink(2, 10);
+        assertNotNull(file);
+        assertFalse(file.isUrl());
+        assertEquals("src/Foo.c", file.getText());
+        assertEquals(42, file.getLineNumber());
+        assertEquals(7, file.getColumnNumber());
+
+        // Unchanged rows keep their cached links after new output
+        emulator.write("plain text");
+        detector.update(emulator.getSnapshot());
+        assertSame(url, detector.findLink(0, 4));
+        assertSame(file, detector.findLink(2, 3));
+        assertNull(detector.findLink(3, 0));
+    }
+
+    private static long diskBytes(File dir) {
+        long bytes = 0;
+        for (File file : dir.listFiles()) {
+            bytes += file.isDirectory() ? diskBytes(file) : file.length();
+        }
+        return bytes;
+    }
+
+    private static String lineText(TerminalEmulator.TextLine line, int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            text.append(line.getChar(i));
+        }
+        return text.toString();
+    }
 }
@@ -0,0 +1,250 @@
+package com.archdroid.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic terminal output modelled on real programs
+ * Every corpus is generated from a fixed seed, so runs are comparable without
+ * shipping recorded traces. Line endings are CR LF as the pty delivers them.
+ */
+final class Corpus {
+
+    static final String CAT = "cat";
+    static final String LS = "ls";
+    static final String COMPILER = "compiler";
+    static final String VIM = "vim";
+    static final String HTOP = "htop";
+    static final String COLOR = "color";
+
+    private static final String[] WORDS = {
+        "the", "terminal", "renders", "output", "from", "a", "process", "while",
+        "scrollback", "keeps", "history", "of", "every", "line", "written", "to",
+        "screen", "and", "cursor", "moves", "between", "cells", "with", "colors",
+        "kernel", "package", "pacman", "arch", "linux", "android", "\u00fcber", "na\u00efve",
+        "\u65e5\u672c\u8a9e", "\u6df7\u5408", "\u0444\u0430\u0439\u043b", "\u0441\u0442\u0440\u043e\u043a\u0430"
+    };
+
+    private static final String[] EXTENSIONS = {
+        ".c", ".h", ".java", ".txt", ".md", ".so", ".tar.gz", ".png", ".sh", ".conf"
+    };
+
+    private static final String CSI = "\u001b[";
+
+    private final StringBuilder out = new StringBuilder();
+    private final Random random = new Random(42);
+
+    private Corpus() {
+    }
+
+    /** Output of the named kind, at least {@code size} bytes of UTF-8 */
+    static byte[] generate(String name, int size) {
+        Corpus corpus = new Corpus();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 65536);
+        while (bytes.size() < size) {
+            corpus.out.setLength(0);
+            switch (name) {
+                case CAT:
+                    corpus.cat();
+                    break;
+                case LS:
+                    corpus.ls();
+                    break;
+                case COMPILER:
+                    corpus.compiler();
+                    break;
+                case VIM:
+                    corpus.vim();
+                    break;
+                case HTOP:
+                    corpus.htop();
+                    break;
+                case COLOR:
+                    corpus.color();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown corpus " + name);
+            }
+            byte[] chunk = corpus.out.toString().getBytes(StandardCharsets.UTF_8);
+            bytes.write(chunk, 0, chunk.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Plain prose, some lines longer than the screen */
+    private void cat() {
+        for (int line = 0; line < 100; line++) {
+            int words = random.nextInt(10) == 0 ? 40 : random.nextInt(16);
+            for (int i = 0; i < words; i++) {
+                if (i > 0) {
+                    out.append(' ');
+                }
+                out.append(word());
+            }
+            out.append("\r\n");
+        }
+    }
+
+    /** {@code ls --color -lR}: one directory listing */
+    private void ls() {
+        out.append("./").append(word()).append('/').append(word()).append(":\r\n");
+        out.append("total ").append(random.nextInt(2000)).append("\r\n");
+        int entries = 5 + random.nextInt(30);
+        for (int i = 0; i < entries; i++) {
+            int kind = random.nextInt(6);
+            out.append(kind == 0 ? 'd' : kind == 1 ? 'l' : '-')
+                .append(kind == 2 ? "rwxr-xr-x" : "rw-r--r--")
+                .append(' ').append(1 + random.nextInt(4))
+                .append(" user user ");
+            pad(Integer.toString(random.nextInt(10000000)), 8);
+            out.append(" Mar ").append(1 + random.nextInt(28)).append(' ')
+                .append(10 + random.nextInt(14)).append(':')
+                .append(10 + random.nextInt(50)).append(' ');
+            String name = word() + "_" + word();
+            switch (kind) {
+                case 0:
+                    sgr("01;34").append(name);
+                    break;
+                case 1:
+                    sgr("01;36").append(name);
+                    sgr("0").append(" -> ").append(name).append(".so");
+                    break;
+                case 2:
+                    sgr("01;32").append(name);
+                    break;
+                default:
+                    String extension = EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+                    if (extension.equals(".tar.gz")) {
+                        sgr("01;31");
+                    } else if (extension.equals(".png")) {
+                        sgr("01;35");
+                    } else {
+                        sgr("0");
+                    }
+                    out.append(name).append(extension);
+                    break;
+            }
+            sgr("0").append("\r\n");
+        }
+        out.append("\r\n");
+    }
+
+    /** GCC-style colored diagnostic with source line and caret */
+    private void compiler() {
+        String file = "src/" + word() + "/" + word() + ".c";
+        int line = 1 + random.nextInt(2000);
+        int column = 1 + random.nextInt(40);
+        boolean error = random.nextInt(3) == 0;
+        sgr("01").append(CSI).append('K').append(file).append(':').append(line)
+            .append(':').append(column).append(':');
+        sgr("").append(CSI).append("K ");
+        sgr(error ? "01;31" : "01;35").append(CSI).append('K')
+            .append(error ? "error: " : "warning: ");
+        sgr("").append(CSI).append('K');
+        out.append("unused variable '");
+        sgr("01").append(CSI).append('K').append(word());
+        sgr("").append(CSI).append("K' [");
+        sgr(error ? "01;31" : "01;35").append(CSI).append("K-Wunused-variable");
+        sgr("").append(CSI).append("K]\r\n");
+        pad(Integer.toString(line), 5);
+        out.append(" |     int ");
+        sgr("01;31").append(CSI).append('K').append(word());
+        sgr("").append(CSI).append("K = ").append(random.nextInt(100)).append(";\r\n");
+        out.append("      |         ");
+        sgr("01;31").append(CSI).append("K^~~~~");
+        sgr("").append(CSI).append("K\r\n");
+    }
+
+    /** vim redrawing a 120x40 screen of highlighted source after a page down */
+    private void vim() {
+        out.append(CSI).append("?25l").append(CSI).append('H');
+        for (int row = 1; row < 40; row++) {
+            out.append(CSI).append(row).append(";1H");
+            sgr("38;5;130").append(String.format(Locale.ROOT, "%4d ", random.nextInt(9999)));
+            sgr("0");
+            int tokens = random.nextInt(10);
+            for (int i = 0; i < tokens; i++) {
+                sgr(i % 3 == 0 ? "38;5;" + (16 + random.nextInt(216)) : i % 3 == 1 ? "1;33" : "0");
+                out.append(word()).append(i % 4 == 3 ? "(" : " ");
+            }
+            sgr("0").append(CSI).append('K');
+        }
+        out.append(CSI).append("40;1H");
+        sgr("7").append(" NORMAL ");
+        sgr("0").append(' ').append(word()).append(".c");
+        out.append(CSI).append("K").append(CSI).append("40;100H")
+            .append(random.nextInt(9999)).append(',').append(random.nextInt(80));
+        out.append(CSI).append(1 + random.nextInt(39)).append(';')
+            .append(6 + random.nextInt(60)).append('H').append(CSI).append("?25h");
+    }
+
+    /** htop refreshing its meters and process table in place */
+    private void htop() {
+        for (int cpu = 0; cpu < 8; cpu++) {
+            out.append(CSI).append(1 + cpu / 2).append(';').append(cpu % 2 == 0 ? 1 : 61)
+                .append('H');
+            sgr("36").append(String.format(Locale.ROOT, "%3d", cpu));
+            sgr("1").append('[');
+            int load = random.nextInt(50);
+            sgr("32");
+            for (int i = 0; i < load; i++) {
+                out.append(i < load * 2 / 3 ? '|' : ' ');
+            }
+            sgr("31");
+            for (int i = load; i < 50; i++) {
+                out.append(i < load + 3 ? '|' : ' ');
+            }
+            sgr("0").append(String.format(Locale.ROOT, "%5.1f%%", random.nextDouble() * 100));
+            sgr("1").append(']');
+            sgr("0");
+        }
+        out.append(CSI).append("6;1H");
+        sgr("30;42").append("    PID USER      PRI  NI  VIRT   RES   SHR S CPU% MEM%   TIME+  Command");
+        out.append(CSI).append('K');
+        for (int row = 7; row < 40; row++) {
+            out.append(CSI).append(row).append(";1H");
+            sgr(row == 7 ? "30;46" : "0");
+            out.append(String.format(Locale.ROOT, "%7d %-9s %3d %3d %5dM %4dM %4dM %s %4.1f %4.1f %3d:%02d.%02d ",
+                random.nextInt(99999), "user", 20, 0, random.nextInt(9999), random.nextInt(999),
+                random.nextInt(99), random.nextInt(5) == 0 ? 'R' : 'S',
+                random.nextDouble() * 100, random.nextDouble() * 10, random.nextInt(60),
+                random.nextInt(60), random.nextInt(100)));
+            sgr(row == 7 ? "30;46" : "1").append('/').append(word()).append("/bin/").append(word());
+            sgr("0").append(CSI).append('K');
+        }
+    }
+
+    /** Every cell in its own 256-color or truecolor pair */
+    private void color() {
+        for (int line = 0; line < 40; line++) {
+            for (int col = 0; col < 120; col++) {
+                if (random.nextBoolean()) {
+                    sgr("38;5;" + random.nextInt(256) + ";48;5;" + random.nextInt(256));
+                } else {
+                    sgr("38;2;" + random.nextInt(256) + ';' + random.nextInt(256) + ';'
+                        + random.nextInt(256) + ";48:2::" + random.nextInt(256) + ':'
+                        + random.nextInt(256) + ':' + random.nextInt(256));
+                }
+                out.append((char) ('!' + random.nextInt(94)));
+            }
+            sgr("0").append("\r\n");
+        }
+    }
+
+    private String word() {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    private StringBuilder sgr(String parameters) {
+        return out.append(CSI).append(parameters).append('m');
+    }
+
+    private void pad(String value, int width) {
+        for (int i = value.length(); i < width; i++) {
+            out.append(' ');
+        }
+        out.append(value);
+    }
+}
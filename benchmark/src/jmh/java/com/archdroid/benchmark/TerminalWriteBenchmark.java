@@ -0,0 +1,92 @@
+package com.archdroid.benchmark;
+
+import com.archdroid.terminal.TerminalEmulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of {@link TerminalEmulator#write(byte[], int, int)}
+ * Output is fed in pty-sized chunks, cycling through the corpus.
+ * <ul>
+ * <li>{@code writeMegabyte}: one operation is 1 MiB of output, so ops/s reads
+ * as MiB/s and the gc profiler's {@code gc.alloc.rate.norm} as bytes allocated
+ * per MiB.</li>
+ * <li>{@code writeChunk}: one operation is one chunk; the sampled
+ * distribution reports per-chunk latency percentiles, p0.99 included.</li>
+ * </ul>
+ * Both run with the emulator's default scrollback, where lines leaving the hot
+ * window are serialized and deflated into the archive, and with scrollback
+ * that fits the hot window, as a baseline for what archiving costs.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class TerminalWriteBenchmark {
+
+    // Typical size of a single read from the pty
+    private static final int CHUNK_SIZE = 4096;
+    private static final int MEGABYTE = 1 << 20;
+    private static final int CORPUS_SIZE = 8 * MEGABYTE;
+
+    @Param({Corpus.CAT, Corpus.LS, Corpus.COMPILER, Corpus.VIM, Corpus.HTOP, Corpus.COLOR})
+    public String corpus;
+
+    // 10000 is the emulator's default, 1000 keeps all history in the hot window
+    @Param({"10000", "1000"})
+    public int scrollbackLines;
+
+    private byte[] data;
+    private TerminalEmulator emulator;
+    private int position;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = Corpus.generate(corpus, CORPUS_SIZE);
+        emulator = new TerminalEmulator(120, 40, scrollbackLines);
+        if (corpus.equals(Corpus.VIM) || corpus.equals(Corpus.HTOP)) {
+            // Full-screen programs run on the alternate screen
+            emulator.write("\u001b[?1049h");
+        }
+        position = 0;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public TerminalEmulator writeMegabyte() {
+        for (int written = 0; written < MEGABYTE; written += CHUNK_SIZE) {
+            nextChunk();
+        }
+        return emulator;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public TerminalEmulator writeChunk() {
+        nextChunk();
+        return emulator;
+    }
+
+    private void nextChunk() {
+        if (position + CHUNK_SIZE > data.length) {
+            position = 0;
+        }
+        emulator.write(data, position, CHUNK_SIZE);
+        position += CHUNK_SIZE;
+    }
+}